@@ -0,0 +1,202 @@
+package tk.zhangh.redis;
+
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文章缓存（article:ARTICLE_ID）的本地缓存
+ * 按最近最少使用淘汰，超过 ttlMillis 的条目视为过期；
+ * 配合 InvalidationThread 订阅键空间通知，文章被修改后立即失效。
+ * 通知是即发即弃的，丢失时本地数据最多滞后 ttlMillis。
+ * 未命中的文章从 Redis 获取期间如果被失效，获取结果不写入本地缓存；只影响被失效的文章
+ * Created by ZhangHao on 2017/10/11.
+ */
+public class ArticleCache {
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Map<String, Integer> fetching = new HashMap<String, Integer>();  // 正在获取的文章及获取数
+    private final Set<String> stale = new HashSet<String>();  // 获取期间被失效的文章
+
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+    @Getter
+    private final AtomicLong evictions = new AtomicLong();
+    @Getter
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @SuppressWarnings("serial")
+    public ArticleCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ArticleCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 获取文章，返回的 Map 可以修改
+     */
+    public Map<String, String> get(Jedis conn, String article) {
+        return getAll(conn, Collections.singletonList(article)).get(article);
+    }
+
+    /**
+     * 批量获取文章，未命中的文章通过流水线一次获取
+     */
+    public Map<String, Map<String, String>> getAll(Jedis conn, Collection<String> articles) {
+        Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+        List<String> missed = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            for (String article : articles) {
+                Entry entry = entries.get(article);
+                if (entry != null && entry.expireAt > now) {
+                    result.put(article, new HashMap<String, String>(entry.data));
+                } else {
+                    missed.add(article);
+                    fetching.merge(article, 1, Integer::sum);
+                }
+            }
+        }
+        hits.addAndGet(result.size());
+        if (missed.isEmpty()) {
+            return result;
+        }
+        misses.addAndGet(missed.size());
+
+        // 获取期间被失效的文章不写入本地缓存，避免写入旧数据
+        List<Response<Map<String, String>>> responses = new ArrayList<Response<Map<String, String>>>();
+        boolean synced = false;
+        try {
+            Pipeline pipe = conn.pipelined();
+            for (String article : missed) {
+                responses.add(pipe.hgetAll(article));
+            }
+            pipe.sync();
+            synced = true;
+        } finally {
+            synchronized (entries) {
+                for (int i = 0; i < missed.size(); i++) {
+                    String article = missed.get(i);
+                    if (synced && !stale.contains(article)) {
+                        Map<String, String> data = responses.get(i).get();
+                        if (!data.isEmpty()) {
+                            entries.put(article, new Entry(new HashMap<String, String>(data), now + ttlMillis));
+                        }
+                    }
+                    finishFetch(article);
+                }
+            }
+        }
+        for (int i = 0; i < missed.size(); i++) {
+            result.put(missed.get(i), responses.get(i).get());
+        }
+        return result;
+    }
+
+    /**
+     * 结束一次获取，没有其他获取时清除失效标记
+     */
+    private void finishFetch(String article) {
+        if (fetching.merge(article, -1, Integer::sum) <= 0) {
+            fetching.remove(article);
+            stale.remove(article);
+        }
+    }
+
+    /**
+     * 使文章失效
+     */
+    public void invalidate(String article) {
+        synchronized (entries) {
+            invalidations.incrementAndGet();
+            entries.remove(article);
+            if (fetching.containsKey(article)) {
+                stale.add(article);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            invalidations.incrementAndGet();
+            entries.clear();
+            stale.addAll(fetching.keySet());
+        }
+    }
+
+    private static class Entry {
+        private final Map<String, String> data;
+        private final long expireAt;
+
+        private Entry(Map<String, String> data, long expireAt) {
+            this.data = data;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 订阅文章的键空间通知，使本地缓存失效
+     * 需要独占一个连接；启动时开启 notify-keyspace-events 的 K、g、h 选项
+     */
+    public static class InvalidationThread extends Thread {
+        private static final String PATTERN = "__keyspace@*__:article:*";
+
+        private final Jedis conn;
+        private final ArticleCache cache;
+        private final JedisPubSub pubSub = new JedisPubSub() {
+            @Override
+            public void onPMessage(String pattern, String channel, String message) {
+                cache.invalidate(channel.substring(channel.indexOf("__:") + 3));
+            }
+
+            @Override
+            public void onPSubscribe(String pattern, int subscribedChannels) {
+                // 订阅前可能错过了通知
+                cache.clear();
+            }
+        };
+
+        public InvalidationThread(Jedis conn, ArticleCache cache) {
+            this.conn = conn;
+            this.cache = cache;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<String> config = conn.configGet("notify-keyspace-events");
+            String flags = config.size() > 1 ? config.get(1) : "";
+            StringBuilder required = new StringBuilder(flags);
+            for (char flag : new char[]{'K', 'g', 'h'}) {
+                if (flags.indexOf(flag) < 0 && (flag == 'K' || flags.indexOf('A') < 0)) {
+                    required.append(flag);
+                }
+            }
+            if (!required.toString().equals(flags)) {
+                conn.configSet("notify-keyspace-events", required.toString());
+            }
+            conn.psubscribe(pubSub, PATTERN);
+        }
+
+        public void quit() {
+            pubSub.punsubscribe();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package tk.zhangh.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 位图存储文章投票人
+ * 用户名通过 voter-ids: 哈希映射为连续整数id（voter: 自增分配），投票人集合 voted:ARTICLE_ID 改为以id为偏移量的位图
+ * <p>
+ * 位图长度由最大用户id决定，用户量大而单篇文章投票人少时可以使用分块模式：
+ * id按 32768 分块，每块 voted:ARTICLE_ID:CHUNK 先使用整数集合（intset 编码，每人2字节），
+ * 超过 512 人（默认 set-max-intset-entries）后转为 4KB 位图
+ * <p>
+ * 可以在已有投票数据上开启：文章的 voted:ARTICLE_ID 仍是旧格式的用户名集合时，
+ * hasVoted 直接查询集合，首次添加投票人时在脚本中把集合原子地转换为位图（或分块），之后不再访问旧格式
+ * Created by ZhangHao on 2017/10/10.
+ */
+public class BitmapVoters {
+    private static final int CHUNK_BITS = 32768;
+    private static final int CHUNK_SET_LIMIT = 512;
+
+    /**
+     * 添加投票人的脚本函数，返回 1 表示首次投票，0 表示已投票
+     * 参数：用户id哈希，用户id分配器，投票人缓存key，用户名，过期时刻，是否分块
+     * voted 是旧格式的用户名集合时先转换
+     */
+    static final String ADD_VOTER_FUNCTION =
+            "local function voterId(idsKey, allocKey, user) " +
+            "  local id = redis.call('HGET', idsKey, user) " +
+            "  if not id then " +
+            "    id = redis.call('INCR', allocKey) " +
+            "    redis.call('HSET', idsKey, user, id) " +
+            "  end " +
+            "  return tonumber(id) " +
+            "end " +
+            "local function markVoter(voted, id, chunked) " +
+            "  local key = voted " +
+            "  local added " +
+            "  if chunked == '1' then " +
+            "    key = voted .. ':' .. math.floor(id / " + CHUNK_BITS + ") " +
+            "    local offset = id % " + CHUNK_BITS + " " +
+            "    if redis.call('TYPE', key).ok == 'string' then " +
+            "      added = 1 - redis.call('SETBIT', key, offset, 1) " +
+            "    else " +
+            "      added = redis.call('SADD', key, offset) " +
+            "      if added == 1 and redis.call('SCARD', key) > " + CHUNK_SET_LIMIT + " then " +
+            "        local members = redis.call('SMEMBERS', key) " +
+            "        redis.call('DEL', key) " +
+            "        for _, member in ipairs(members) do redis.call('SETBIT', key, member, 1) end " +
+            "      end " +
+            "    end " +
+            "  else " +
+            "    added = 1 - redis.call('SETBIT', key, id, 1) " +
+            "  end " +
+            "  return added, key " +
+            "end " +
+            "local function addVoter(idsKey, allocKey, voted, user, expireAt, chunked) " +
+            "  if redis.call('TYPE', voted).ok == 'set' then " +
+            "    local members = redis.call('SMEMBERS', voted) " +
+            "    redis.call('DEL', voted) " +
+            "    for _, member in ipairs(members) do " +
+            "      local _, key = markVoter(voted, voterId(idsKey, allocKey, member), chunked) " +
+            "      redis.call('EXPIREAT', key, expireAt) " +
+            "    end " +
+            "  end " +
+            "  local added, key = markVoter(voted, voterId(idsKey, allocKey, user), chunked) " +
+            "  if added == 1 then redis.call('EXPIREAT', key, expireAt) end " +
+            "  return added " +
+            "end ";
+
+    private static final String ADD_SCRIPT = ADD_VOTER_FUNCTION +
+            "return addVoter(KEYS[1], KEYS[2], KEYS[3], ARGV[1], ARGV[2], ARGV[3])";
+    private static final LuaScript ADD = new LuaScript(ADD_SCRIPT);
+
+    private final boolean chunked;
+
+    public BitmapVoters(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * 添加投票人
+     *
+     * @param expireAt 投票人缓存的过期时刻（秒）
+     * @return 是否首次投票
+     */
+    public boolean add(Jedis conn, String articleId, String user, long expireAt) {
+        return Long.valueOf(1).equals(ADD.call(conn, keys(articleId), args(user, expireAt)));
+    }
+
+    /**
+     * 加载添加投票人脚本，在流水线开始前调用
+     */
+    public void load(Jedis conn) {
+        ADD.load(conn);
+    }
+
+    /**
+     * 在流水线中添加投票人，需要先 load；sync 后通过 isAdded 读取结果
+     */
+    public Response<Object> add(Pipeline pipe, String articleId, String user, long expireAt) {
+        return ADD.call(pipe, keys(articleId), args(user, expireAt));
+    }
+
+    /**
+     * 流水线中添加投票人的结果，是否首次投票
+     */
+    public boolean isAdded(Jedis conn, Response<Object> response, String articleId, String user, long expireAt) {
+        return Long.valueOf(1).equals(ADD.get(conn, response, keys(articleId), args(user, expireAt)));
+    }
+
+    /**
+     * 是否已投票
+     */
+    public boolean hasVoted(Jedis conn, String articleId, String user) {
+        if ("set".equals(conn.type("voted:" + articleId))) {
+            return conn.sismember("voted:" + articleId, user);  // 尚未转换的旧格式
+        }
+        String id = conn.hget("voter-ids:", user);
+        if (id == null) {
+            return false;
+        }
+        long offset = Long.parseLong(id);
+        String key = "voted:" + articleId;
+        if (!chunked) {
+            return conn.getbit(key, offset);
+        }
+        key = key + ":" + (offset / CHUNK_BITS);
+        offset = offset % CHUNK_BITS;
+        String type = conn.type(key);
+        if ("string".equals(type)) {
+            return conn.getbit(key, offset);
+        }
+        return "set".equals(type) && conn.sismember(key, String.valueOf(offset));
+    }
+
+    private List<String> keys(String articleId) {
+        return Arrays.asList("voter-ids:", "voter:", "voted:" + articleId);
+    }
+
+    private List<String> args(String user, long expireAt) {
+        return Arrays.asList(user, String.valueOf(expireAt), chunked ? "1" : "0");
+    }
+}
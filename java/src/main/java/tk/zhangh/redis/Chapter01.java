@@ -1,10 +1,21 @@
 package tk.zhangh.redis;
 
 
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ZParams;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by ZhangHao on 2017/9/26.
@@ -13,6 +24,50 @@ public class Chapter01 {
     private static final int ONE_WEEK_IN_SECONDS = 7 * 86400;
     private static final int VOTE_SCORE = 432;
     private static final int ARTICLES_PER_PAGE = 25;
+    private static final int GROUP_RANKING_TTL = 60;
+    private static final long REBUILD_LEASE_MILLIS = 5000;
+
+    /**
+     * 增量维护分组排序：写入时同步更新 score:GROUP / time:GROUP，读取时不再 ZINTERSTORE 重建
+     * 同一个 Redis 上的所有客户端需要使用相同的模式
+     */
+    private final boolean incrementalGroups;
+
+    /**
+     * 排序分组不存在时，等待其他调用者重建的最长时间
+     */
+    @Setter
+    private long rebuildWaitMillis = 1000;
+
+    /**
+     * 排序分组剩余过期时间小于该值时提前刷新（stale-while-revalidate），0 表示不提前刷新
+     */
+    @Setter
+    private int refreshAheadSeconds = 0;
+
+    @Getter
+    private final RebuildStats rebuildStats = new RebuildStats();
+
+    /**
+     * 投票人存储，为 null 时使用集合存储用户名；
+     * 可以在已有的用户名集合上开启，每篇文章首次添加投票人时转换，见 BitmapVoters。开启后不能再关闭
+     */
+    @Setter
+    private BitmapVoters bitmapVoters;
+
+    /**
+     * 文章本地缓存，为 null 时每次从 Redis 读取
+     */
+    @Setter
+    private ArticleCache articleCache;
+
+    public Chapter01() {
+        this(false);
+    }
+
+    public Chapter01(boolean incrementalGroups) {
+        this.incrementalGroups = incrementalGroups;
+    }
 
     /*=======================================文章投票====================================================================
     使用8个缓存结构：
@@ -24,38 +79,303 @@ public class Chapter01 {
     6. 文章分组缓存(group:GROUP)，集合
     7. 时间排序分组缓存(time:GROUP)，有序集合
     8. 分数排序分组缓存（score:GROUP）,有序集合
+    增量维护分组排序时额外使用：
+    9. 文章所属分组缓存（groups:ARTICLE_ID），集合
+    位图存储投票人时（见 BitmapVoters）：
+    10. 用户id分配器（voter:），字符串
+    11. 用户id缓存（voter-ids:），哈希
+    投票人缓存 voted:ARTICLE_ID 改为位图，或分块后的 voted:ARTICLE_ID:CHUNK
      */
 
     /**
      * 投票
      */
     public void articleVote(Jedis conn, String user, String article) {
+        if (incrementalGroups) {
+            // 分组分数需要与 addGroups 的初始化互斥，使用原子的脚本投票
+            articleVoteScript(conn, user, article);
+            return;
+        }
         long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;  // 超过一周禁止投票
-        if (conn.zscore("time:", article) == null || // 未找到文章发布时间
-                conn.zscore("time:", article) < cutoff) {  // 发布时间超过一周
+        Double posted = conn.zscore("time:", article);
+        if (posted == null || // 未找到文章发布时间
+                posted < cutoff) {  // 发布时间超过一周
             return;
         }
 
         String articleId = article.substring(article.indexOf(':') + 1);
-        if (conn.sadd("voted:" + articleId, user) == 1) {
+        boolean added = bitmapVoters != null
+                ? bitmapVoters.add(conn, articleId, user, posted.longValue() + ONE_WEEK_IN_SECONDS)
+                : conn.sadd("voted:" + articleId, user) == 1;
+        if (added) {
             // 第一次投票
             conn.zincrby("score:", VOTE_SCORE, article);
             conn.hincrBy(article, "votes", 1L);
         }
     }
 
+    /**
+     * 投票，一次往返
+     * 通过脚本原子完成截止时间检查、投票人去重、分数和票数更新，不会出现记录了投票人却没有加分的情况
+     *
+     * @return 是否投票成功
+     */
+    public boolean articleVoteScript(Jedis conn, String user, String article) {
+        long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;  // 超过一周禁止投票
+        String articleId = article.substring(article.indexOf(':') + 1);
+        String voters = bitmapVoters == null ? "set" : bitmapVoters.isChunked() ? "chunked" : "bitmap";
+        Object voted = VOTE.call(conn,
+                Arrays.asList("time:", "score:", "voted:" + articleId, article, "groups:" + articleId,
+                        "voter-ids:", "voter:"),
+                Arrays.asList(String.valueOf(cutoff), user, String.valueOf(VOTE_SCORE), incrementalGroups ? "1" : "0",
+                        voters, String.valueOf(ONE_WEEK_IN_SECONDS)));
+        return Long.valueOf(1).equals(voted);
+    }
+
+    /**
+     * 投票脚本
+     * KEYS: time:, score:, voted:ARTICLE_ID, article:ARTICLE_ID, groups:ARTICLE_ID, voter-ids:, voter:
+     * ARGV: 截止时间, 投票人, 投票分数, 是否增量维护分组排序, 投票人存储（set / bitmap / chunked）, 投票有效期
+     */
+    private static final LuaScript VOTE = new LuaScript(BitmapVoters.ADD_VOTER_FUNCTION +
+            "local posted = redis.call('ZSCORE', KEYS[1], KEYS[4]) " +
+            "if not posted or tonumber(posted) < tonumber(ARGV[1]) then return 0 end " +
+            "local added " +
+            "if ARGV[5] == 'set' then " +
+            "  added = redis.call('SADD', KEYS[3], ARGV[2]) " +
+            "else " +
+            "  local expireAt = math.floor(tonumber(posted) + tonumber(ARGV[6])) " +
+            "  added = addVoter(KEYS[6], KEYS[7], KEYS[3], ARGV[2], expireAt, ARGV[5] == 'chunked' and '1' or '0') " +
+            "end " +
+            "if added == 0 then return 0 end " +
+            "redis.call('ZINCRBY', KEYS[2], ARGV[3], KEYS[4]) " +
+            "redis.call('HINCRBY', KEYS[4], 'votes', 1) " +
+            "if ARGV[4] == '1' then " +
+            "  for _, group in ipairs(redis.call('SMEMBERS', KEYS[5])) do " +
+            "    redis.call('ZINCRBY', 'score:' .. group, ARGV[3], KEYS[4]) " +
+            "  end " +
+            "end " +
+            "return 1");
+
+    /**
+     * 批量投票
+     * 1. 流水线获取所有文章的发布时间
+     * 2. 流水线 SADD 投票人，根据返回值去重（同一批次内的重复投票同样会被去掉）
+     * 3. 按文章合并分数和票数，每篇文章只执行一次 ZINCRBY / HINCRBY
+     *
+     * @return 有效投票数
+     */
+    public long voteBatch(Jedis conn, Collection<Vote> votes) {
+        if (votes.isEmpty()) {
+            return 0;
+        }
+        long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;  // 超过一周禁止投票
+
+        // 文章发布时间
+        Pipeline pipe = conn.pipelined();
+        Map<String, Response<Double>> posted = new HashMap<String, Response<Double>>();
+        for (Vote vote : votes) {
+            if (!posted.containsKey(vote.getArticle())) {
+                posted.put(vote.getArticle(), pipe.zscore("time:", vote.getArticle()));
+            }
+        }
+        pipe.sync();
+
+        // 投票人去重
+        if (bitmapVoters != null) {
+            bitmapVoters.load(conn);
+        }
+        pipe = conn.pipelined();
+        List<Vote> accepted = new ArrayList<Vote>();
+        List<Long> expireAts = new ArrayList<Long>();
+        List<Response<?>> added = new ArrayList<Response<?>>();
+        for (Vote vote : votes) {
+            Double time = posted.get(vote.getArticle()).get();
+            if (time == null || time < cutoff) {
+                continue;
+            }
+            String article = vote.getArticle();
+            String articleId = article.substring(article.indexOf(':') + 1);
+            accepted.add(vote);
+            expireAts.add(time.longValue() + ONE_WEEK_IN_SECONDS);
+            if (bitmapVoters != null) {
+                added.add(bitmapVoters.add(pipe, articleId, vote.getUser(), time.longValue() + ONE_WEEK_IN_SECONDS));
+            } else {
+                added.add(pipe.sadd("voted:" + articleId, vote.getUser()));
+            }
+        }
+        pipe.sync();
+
+        // 按文章合并票数
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (int i = 0; i < added.size(); i++) {
+            String article = accepted.get(i).getArticle();
+            boolean first;
+            if (bitmapVoters != null) {
+                @SuppressWarnings("unchecked")
+                Response<Object> response = (Response<Object>) added.get(i);
+                first = bitmapVoters.isAdded(conn, response, article.substring(article.indexOf(':') + 1),
+                        accepted.get(i).getUser(), expireAts.get(i));
+            } else {
+                first = Long.valueOf(1).equals(added.get(i).get());
+            }
+            if (first) {
+                counts.merge(article, 1L, Long::sum);
+            }
+        }
+        if (counts.isEmpty()) {
+            return 0;
+        }
+
+        long total = 0;
+        if (incrementalGroups) {
+            // 读取所属分组和更新分组排序需要与 addGroups 互斥，通过脚本原子执行
+            APPLY_VOTES.load(conn);
+        }
+        pipe = conn.pipelined();
+        List<List<String>> appliedKeys = new ArrayList<List<String>>();
+        List<List<String>> appliedArgs = new ArrayList<List<String>>();
+        List<Response<Object>> applied = new ArrayList<Response<Object>>();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            String article = entry.getKey();
+            if (incrementalGroups) {
+                List<String> keys = Arrays.asList("score:", article, "groups:" + article.substring(article.indexOf(':') + 1));
+                List<String> args = Arrays.asList(String.valueOf(entry.getValue() * VOTE_SCORE), String.valueOf(entry.getValue()));
+                appliedKeys.add(keys);
+                appliedArgs.add(args);
+                applied.add(APPLY_VOTES.call(pipe, keys, args));
+            } else {
+                pipe.zincrby("score:", entry.getValue() * VOTE_SCORE, article);
+                pipe.hincrBy(article, "votes", entry.getValue());
+            }
+            total += entry.getValue();
+        }
+        pipe.sync();
+        for (int i = 0; i < applied.size(); i++) {
+            APPLY_VOTES.get(conn, applied.get(i), appliedKeys.get(i), appliedArgs.get(i));
+        }
+        return total;
+    }
+
+    /**
+     * 增量维护分组排序时合并提交文章票数的脚本
+     * KEYS: score:, article:ARTICLE_ID, groups:ARTICLE_ID  ARGV: 分数增量, 票数增量
+     */
+    private static final LuaScript APPLY_VOTES = new LuaScript(
+            "redis.call('ZINCRBY', KEYS[1], ARGV[1], KEYS[2]) " +
+            "redis.call('HINCRBY', KEYS[2], 'votes', ARGV[2]) " +
+            "for _, group in ipairs(redis.call('SMEMBERS', KEYS[3])) do " +
+            "  redis.call('ZINCRBY', 'score:' .. group, ARGV[1], KEYS[2]) " +
+            "end " +
+            "return 1");
+
+    /**
+     * 投票
+     */
+    @AllArgsConstructor
+    @Data
+    public static class Vote {
+        private String user;
+        private String article;
+    }
+
+    /**
+     * 批量投票线程
+     * 投票先进入本地队列，攒够 maxBatchSize 条或距离批次第一条投票超过 flushInterval 毫秒时批量提交，
+     * 投票生效的延迟不超过 flushInterval（服务端处理能力足够时）。
+     * 使用传入的 Chapter01 提交，投票人存储、增量维护分组排序等配置与直接投票相同；
+     * 提交失败时丢弃该批次并记入 failedVotes，最近一次的异常见 lastError，线程继续运行
+     */
+    public static class VoteBatchThread extends Thread {
+        private final Chapter01 app;
+        private final Jedis conn;
+        private final long flushInterval;
+        private final int maxBatchSize;
+        private final BlockingQueue<Vote> queue;
+        private volatile boolean quit;
+
+        @Getter
+        private final AtomicLong failedVotes = new AtomicLong();  // 提交失败的投票数
+        @Getter
+        private volatile RuntimeException lastError;  // 最近一次提交失败的异常
+
+        public VoteBatchThread(Chapter01 app, Jedis conn, long flushInterval, int maxBatchSize) {
+            this.app = app;
+            this.conn = conn;
+            this.flushInterval = flushInterval;
+            this.maxBatchSize = maxBatchSize;
+            this.queue = new ArrayBlockingQueue<Vote>(maxBatchSize * 16);  // 队列满时阻塞投票方
+        }
+
+        /**
+         * 提交投票
+         */
+        public void vote(String user, String article) throws InterruptedException {
+            queue.put(new Vote(user, article));
+        }
+
+        public void quit() {
+            quit = true;
+        }
+
+        @Override
+        public void run() {
+            List<Vote> batch = new ArrayList<Vote>(maxBatchSize);
+            while (!quit) {
+                try {
+                    Vote first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    long deadline = System.currentTimeMillis() + flushInterval;
+                    while (batch.size() < maxBatchSize) {
+                        long wait = deadline - System.currentTimeMillis();
+                        Vote vote = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                        if (vote == null) {
+                            break;
+                        }
+                        batch.add(vote);
+                        queue.drainTo(batch, maxBatchSize - batch.size());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    quit = true;
+                }
+                submit(batch);
+            }
+            // 退出前提交剩余投票
+            queue.drainTo(batch);
+            submit(batch);
+        }
+
+        private void submit(List<Vote> batch) {
+            try {
+                app.voteBatch(conn, batch);
+            } catch (RuntimeException e) {
+                failedVotes.addAndGet(batch.size());
+                lastError = e;
+            }
+            batch.clear();
+        }
+    }
+
     /**
      * 发布文章
      */
     public String postArticle(Jedis conn, String user, String title, String link) {
         String articleId = String.valueOf(conn.incr("article:"));  // 新的文章Id，递增
 
-        String voted = "voted:" + articleId;
-        conn.sadd(voted, user);  // 添加文章投票人缓存
-        conn.expire(voted, ONE_WEEK_IN_SECONDS);  // 文章投票人缓存一周后过期
+        long now = System.currentTimeMillis() / 1000;
+        if (bitmapVoters != null) {
+            bitmapVoters.add(conn, articleId, user, now + ONE_WEEK_IN_SECONDS);  // 添加文章投票人缓存，一周后过期
+        } else {
+            String voted = "voted:" + articleId;
+            conn.sadd(voted, user);  // 添加文章投票人缓存
+            conn.expire(voted, ONE_WEEK_IN_SECONDS);  // 文章投票人缓存一周后过期
+        }
 
         // 添加文章缓存
-        long now = System.currentTimeMillis() / 1000;
         String article = "article:" + articleId;
         HashMap<String, String> articleData = new HashMap<String, String>();
         articleData.put("title", title);
@@ -85,26 +405,223 @@ public class Chapter01 {
     public List<Map<String, String>> getArticles(Jedis conn, int page, String order) {
         // 分页
         int start = (page - 1) * ARTICLES_PER_PAGE;
-        int end = start + ARTICLES_PER_PAGE + 1;
+        int end = start + ARTICLES_PER_PAGE - 1;
 
         Set<String> ids = conn.zrange(order, start, end);
         List<Map<String, String>> articles = new ArrayList<Map<String, String>>();
+        Map<String, Map<String, String>> cached = articleCache != null ? articleCache.getAll(conn, ids) : null;
         for (String id : ids) {
-            Map<String, String> articleData = conn.hgetAll(id);
+            Map<String, String> articleData = cached != null ? cached.get(id) : conn.hgetAll(id);
             articleData.put("id", id);
             articles.add(articleData);
         }
         return articles;
     }
 
+    /**
+     * 分页获取文章，一次往返
+     * 通过脚本在服务端完成 ZRANGE 和各文章的 HGETALL / HMGET，避免每篇文章一次往返
+     *
+     * @param fields 只获取指定字段（如 title、link、votes），为空时获取全部字段
+     */
+    public List<Map<String, String>> getArticlesBatch(Jedis conn, int page, String order, String... fields) {
+        int start = (page - 1) * ARTICLES_PER_PAGE;
+        int end = start + ARTICLES_PER_PAGE - 1;
+
+        List<String> args = new ArrayList<String>();
+        args.add(String.valueOf(start));
+        args.add(String.valueOf(end));
+        Collections.addAll(args, fields);
+        List<?> rows = (List<?>) FETCH_PAGE.call(conn, Collections.singletonList(order), args);
+        return toArticles(rows, fields);
+    }
+
+    /**
+     * 解析脚本返回的文章，每行为 {id, 字段值, ...}
+     */
+    private List<Map<String, String>> toArticles(List<?> rows, String[] fields) {
+        List<Map<String, String>> articles = new ArrayList<Map<String, String>>();
+        for (Object row : rows) {
+            List<?> pair = (List<?>) row;
+            String id = (String) pair.get(0);
+            List<?> values = (List<?>) pair.get(1);
+            Map<String, String> articleData = new HashMap<String, String>();
+            if (fields.length > 0) {
+                // HMGET 按字段顺序返回，不存在的字段为 null
+                for (int i = 0; i < fields.length; i++) {
+                    if (values.get(i) != null) {
+                        articleData.put(fields[i], (String) values.get(i));
+                    }
+                }
+            } else {
+                // HGETALL 返回 field1, value1, field2, value2...
+                for (int i = 0; i + 1 < values.size(); i += 2) {
+                    articleData.put((String) values.get(i), (String) values.get(i + 1));
+                }
+            }
+            articleData.put("id", id);
+            articles.add(articleData);
+        }
+        return articles;
+    }
+
+    /**
+     * 分页获取文章脚本
+     * KEYS[1]: 排序集合，ARGV[1]、ARGV[2]: 起止排名，ARGV[3...]: 需要的字段
+     */
+    private static final LuaScript FETCH_PAGE = new LuaScript(
+            "local ids = redis.call('ZRANGE', KEYS[1], ARGV[1], ARGV[2]) " +
+            "local result = {} " +
+            "for i, id in ipairs(ids) do " +
+            "  if #ARGV > 2 then " +
+            "    result[i] = {id, redis.call('HMGET', id, unpack(ARGV, 3))} " +
+            "  else " +
+            "    result[i] = {id, redis.call('HGETALL', id)} " +
+            "  end " +
+            "end " +
+            "return result");
+
+    /**
+     * 按游标分页获取文章，分数从高到低
+     * 游标记录上一页最后一篇文章的分数和id，下一页从该位置之后继续 ZREVRANGEBYSCORE ... LIMIT，
+     * 任意深度的翻页开销都与第一页相同，翻页期间分数变化也不会导致重复或遗漏已翻过位置之后的文章
+     *
+     * @param cursor 上一页返回的游标，获取第一页时为 null
+     * @param fields 只获取指定字段，为空时获取全部字段
+     * @throws IllegalArgumentException 游标格式错误或被截断
+     */
+    public ArticlePage getArticlesByCursor(Jedis conn, String order, String cursor, String... fields) {
+        String score = "+inf";
+        String member = "";
+        if (cursor != null) {
+            String[] position = decodeCursor(cursor);
+            score = position[0];
+            member = position[1];
+        }
+
+        List<String> args = new ArrayList<String>();
+        args.add(score);
+        args.add(member);
+        args.add(String.valueOf(ARTICLES_PER_PAGE));
+        Collections.addAll(args, fields);
+        List<?> rows = (List<?>) FETCH_AFTER.call(conn, Collections.singletonList(order), args);
+
+        String next = null;
+        if (rows.size() == ARTICLES_PER_PAGE) {
+            List<?> last = (List<?>) rows.get(rows.size() - 1);
+            String position = last.get(2) + " " + last.get(0);
+            next = Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+        }
+        return new ArticlePage(toArticles(rows, fields), next);
+    }
+
+    /**
+     * 解析游标，返回分数和文章id
+     *
+     * @throws IllegalArgumentException 游标格式错误或被截断
+     */
+    private static String[] decodeCursor(String cursor) {
+        String[] position;
+        try {
+            position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(" ", 2);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+        if (position.length != 2 || position[1].isEmpty()) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        try {
+            if (Double.isNaN(Double.parseDouble(position[0]))) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+        return position;
+    }
+
+    /**
+     * 按游标分页获取文章脚本
+     * KEYS[1]: 排序集合，ARGV[1]、ARGV[2]: 游标位置的分数和文章，ARGV[3]: 每页数量，ARGV[4...]: 需要的字段
+     * 分数相同的文章按id逆序排列，先跳过与游标分数相同且不在游标之后的文章
+     */
+    private static final LuaScript FETCH_AFTER = new LuaScript(
+            "local skip = 0 " +
+            "if ARGV[1] ~= '+inf' then " +
+            "  for _, id in ipairs(redis.call('ZREVRANGEBYSCORE', KEYS[1], ARGV[1], ARGV[1])) do " +
+            "    if id >= ARGV[2] then skip = skip + 1 end " +
+            "  end " +
+            "end " +
+            "local ids = redis.call('ZREVRANGEBYSCORE', KEYS[1], ARGV[1], '-inf', 'WITHSCORES', 'LIMIT', skip, ARGV[3]) " +
+            "local result = {} " +
+            "for i = 1, #ids, 2 do " +
+            "  local id = ids[i] " +
+            "  if #ARGV > 3 then " +
+            "    result[#result + 1] = {id, redis.call('HMGET', id, unpack(ARGV, 4)), ids[i + 1]} " +
+            "  else " +
+            "    result[#result + 1] = {id, redis.call('HGETALL', id), ids[i + 1]} " +
+            "  end " +
+            "end " +
+            "return result");
+
+    /**
+     * 一页文章
+     */
+    @AllArgsConstructor
+    @Data
+    public static class ArticlePage {
+        private List<Map<String, String>> articles;
+        private String cursor;  // 下一页游标，没有下一页时为 null
+    }
+
     /**
      * 添加分组
      */
     public void addGroups(Jedis conn, String articleId, String[] toAdd) {
         String article = "article:" + articleId;
-        for (String group : toAdd) {
-            conn.sadd("group:" + group, article);
+        if (!incrementalGroups) {
+            for (String group : toAdd) {
+                conn.sadd("group:" + group, article);
+            }
+            return;
+        }
+
+        // 增量维护分组排序：记录文章所属分组，并把文章当前的分数、发布时间写入分组排序。
+        // 读取分数和写入分组在脚本中原子执行，期间的投票要么计入读取的分数，要么在之后按所属分组更新
+        ADD_GROUPS.call(conn, Arrays.asList("score:", "time:", "groups:" + articleId, article), Arrays.asList(toAdd));
+    }
+
+    /**
+     * 增量维护分组排序时添加分组的脚本
+     * KEYS: score:, time:, groups:ARTICLE_ID, article:ARTICLE_ID  ARGV: 分组
+     */
+    private static final LuaScript ADD_GROUPS = new LuaScript(
+            "local score = redis.call('ZSCORE', KEYS[1], KEYS[4]) " +
+            "local time = redis.call('ZSCORE', KEYS[2], KEYS[4]) " +
+            "for _, group in ipairs(ARGV) do " +
+            "  redis.call('SADD', 'group:' .. group, KEYS[4]) " +
+            "  redis.call('SADD', KEYS[3], group) " +
+            "  if score then redis.call('ZADD', 'score:' .. group, score, KEYS[4]) end " +
+            "  if time then redis.call('ZADD', 'time:' .. group, time, KEYS[4]) end " +
+            "end " +
+            "return 1");
+
+    /**
+     * 初始化增量维护的分组排序
+     * 切换到增量模式前对已有分组执行一次：建立文章所属分组索引，并生成不过期的 score:GROUP / time:GROUP
+     */
+    public void rebuildGroupRankings(Jedis conn, String group) {
+        Set<String> articles = conn.smembers("group:" + group);
+        Pipeline pipe = conn.pipelined();
+        for (String article : articles) {
+            pipe.sadd("groups:" + article.substring(article.indexOf(':') + 1), group);
         }
+        ZParams params = new ZParams().aggregate(ZParams.Aggregate.MAX);
+        for (String order : new String[]{"score:", "time:"}) {
+            pipe.zinterstore(order + group, params, "group:" + group, order);
+            pipe.persist(order + group);
+        }
+        pipe.sync();
     }
 
     /**
@@ -123,14 +640,123 @@ public class Chapter01 {
      * 获得分组的文章，根据指定排序分页获得
      */
     public List<Map<String, String>> getGroupArticles(Jedis conn, String group, int page, String order) {
+        return getArticles(conn, page, groupOrderKey(conn, group, order));
+    }
+
+    /**
+     * 获得分组的文章，一次往返获取分页内容
+     *
+     * @param fields 只获取指定字段，为空时获取全部字段
+     */
+    public List<Map<String, String>> getGroupArticlesBatch(Jedis conn, String group, int page, String order,
+                                                           String... fields) {
+        return getArticlesBatch(conn, page, groupOrderKey(conn, group, order), fields);
+    }
+
+    /**
+     * 按游标分页获取分组的文章，分数从高到低
+     */
+    public ArticlePage getGroupArticlesByCursor(Jedis conn, String group, String order, String cursor,
+                                                String... fields) {
+        return getArticlesByCursor(conn, groupOrderKey(conn, group, order), cursor, fields);
+    }
+
+    /**
+     * 获取时间/分数排序分组缓存的key，不存在时创建
+     */
+    private String groupOrderKey(Jedis conn, String group, String order) {
         String key = order + group;  // 时间/分数排序分组缓存
-        if (!conn.exists(key)) {
-            // 创建临时排序分组
-            // 合并分组集合（group:GROUP）和排序集合（score: / time:），取两个集合的大值
-            ZParams params = new ZParams().aggregate(ZParams.Aggregate.MAX);
-            conn.zinterstore(key, params, "group:" + group, order);
-            conn.expire(key, 60);
-        }
-        return getArticles(conn, page, key);
+        if (incrementalGroups && ("score:".equals(order) || "time:".equals(order))) {
+            // 写入时已维护，直接读取
+            return key;
+        }
+        if (refreshAheadSeconds > 0) {
+            long ttl = conn.ttl(key);
+            if (ttl == -1 || ttl > refreshAheadSeconds) {
+                return key;
+            }
+            if (ttl >= 0) {
+                // 即将过期，由抢到租约的调用者提前刷新，其他调用者继续读取旧的排序
+                tryRebuildGroup(conn, group, order, key, false);
+                return key;
+            }
+        } else if (conn.exists(key)) {
+            return key;
+        }
+
+        // 排序分组不存在，只由抢到租约的调用者重建，其他调用者等待重建完成；
+        // 租约释放后排序分组仍不存在（重建者异常退出）时，由等待者中抢到租约的一个接替重建
+        if (tryRebuildGroup(conn, group, order, key, true)) {
+            return key;
+        }
+        long start = System.currentTimeMillis();
+        boolean exists = conn.exists(key);
+        while (!exists && System.currentTimeMillis() - start < rebuildWaitMillis) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            exists = conn.exists(key);
+            if (!exists && tryRebuildGroup(conn, group, order, key, true)) {
+                return key;
+            }
+        }
+        rebuildStats.waits.incrementAndGet();
+        rebuildStats.waitMillis.addAndGet(System.currentTimeMillis() - start);
+        if (!exists) {
+            // 等待超时（重建者异常退出等），自行重建
+            rebuildStats.fallbacks.incrementAndGet();
+            rebuildGroup(conn, group, order, key);
+        }
+        return key;
+    }
+
+    /**
+     * 抢占重建租约，成功时重建排序分组
+     *
+     * @param ifMissing 抢到租约后排序分组已存在（其他调用者刚重建完成）时不再重建
+     * @return 是否执行了重建
+     */
+    private boolean tryRebuildGroup(Jedis conn, String group, String order, String key, boolean ifMissing) {
+        String lease = "rebuild:" + key;
+        String token = UUID.randomUUID().toString();
+        if (!"OK".equals(conn.set(lease, token, "NX", "PX", REBUILD_LEASE_MILLIS))) {
+            return false;
+        }
+        try {
+            if (ifMissing && conn.exists(key)) {
+                return false;
+            }
+            rebuildGroup(conn, group, order, key);
+            return true;
+        } finally {
+            LuaScript.RELEASE_LEASE.call(conn, Collections.singletonList(lease), Collections.singletonList(token));
+        }
+    }
+
+    /**
+     * 创建临时排序分组
+     * 合并分组集合（group:GROUP）和排序集合（score: / time:），取两个集合的大值
+     */
+    private void rebuildGroup(Jedis conn, String group, String order, String key) {
+        ZParams params = new ZParams().aggregate(ZParams.Aggregate.MAX);
+        Pipeline pipe = conn.pipelined();
+        pipe.zinterstore(key, params, "group:" + group, order);
+        pipe.expire(key, GROUP_RANKING_TTL);
+        pipe.sync();
+        rebuildStats.rebuilds.incrementAndGet();
+    }
+
+    /**
+     * 排序分组重建统计
+     */
+    @Getter
+    public static class RebuildStats {
+        private final AtomicLong rebuilds = new AtomicLong();  // 重建次数
+        private final AtomicLong waits = new AtomicLong();  // 等待他人重建的次数
+        private final AtomicLong waitMillis = new AtomicLong();  // 等待他人重建的总耗时
+        private final AtomicLong fallbacks = new AtomicLong();  // 等待超时后自行重建的次数
     }
 }
@@ -0,0 +1,116 @@
+package tk.zhangh.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import static tk.zhangh.redis.Config.HOST;
+import static tk.zhangh.redis.Config.PORT;
+
+/**
+ * Chapter01 不同实现的性能对比
+ * Created by ZhangHao on 2017/10/9.
+ */
+public class Chapter01Benchmark {
+
+    private static final long TIMES = 10000;
+    private static final Jedis JEDIS = new Jedis(HOST, PORT);
+    private static final Chapter01 APP = new Chapter01();
+
+    private static final int VOTER_USERS = 100000;
+    private static final int VOTER_ARTICLES = 100;
+    private static final int VOTERS_PER_ARTICLE = 1000;
+
+    /**
+     * 多次往返投票
+     */
+    public void articleVote() {
+        String article = "article:" + APP.postArticle(JEDIS, "bench-author", "bench", "bench-link");
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < TIMES; i++) {
+            APP.articleVote(JEDIS, "bench-user" + i, article);
+        }
+        long end = System.currentTimeMillis();
+        print("articleVote", start, end);
+    }
+
+    /**
+     * 脚本投票
+     */
+    public void articleVoteScript() {
+        String article = "article:" + APP.postArticle(JEDIS, "bench-author", "bench", "bench-link");
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < TIMES; i++) {
+            APP.articleVoteScript(JEDIS, "bench-user" + i, article);
+        }
+        long end = System.currentTimeMillis();
+        print("articleVoteScript", start, end);
+    }
+
+    /**
+     * 投票人存储内存对比：集合 / 位图 / 分块位图
+     * 每种存储分别写入 VOTER_ARTICLES 篇文章，每篇 VOTERS_PER_ARTICLE 个投票人，投票人从 VOTER_USERS 个用户中选取
+     */
+    public void voterMemory() {
+        // 先分配好用户id，避免用户id哈希计入位图的内存
+        BitmapVoters interning = new BitmapVoters(false);
+        for (int i = 0; i < VOTER_USERS; i++) {
+            interning.add(JEDIS, "intern", "bench-user" + i, Long.MAX_VALUE / 2);
+        }
+        JEDIS.del("voted:intern");
+        long expireAt = System.currentTimeMillis() / 1000 + 86400;
+
+        long before = usedMemory();
+        for (int a = 0; a < VOTER_ARTICLES; a++) {
+            Pipeline pipe = JEDIS.pipelined();
+            for (int i = 0; i < VOTERS_PER_ARTICLE; i++) {
+                pipe.sadd("voted:set" + a, "bench-user" + voter(a, i));
+            }
+            pipe.sync();
+        }
+        long set = usedMemory() - before;
+
+        long bitmap = voterMemory(new BitmapVoters(false), "bitmap", expireAt);
+        long chunked = voterMemory(new BitmapVoters(true), "chunked", expireAt);
+        System.out.println("Voter set: " + set / VOTER_ARTICLES + " bytes/article");
+        System.out.println("Voter bitmap: " + bitmap / VOTER_ARTICLES + " bytes/article");
+        System.out.println("Voter chunked bitmap: " + chunked / VOTER_ARTICLES + " bytes/article");
+    }
+
+    private long voterMemory(BitmapVoters voters, String prefix, long expireAt) {
+        long before = usedMemory();
+        voters.load(JEDIS);
+        for (int a = 0; a < VOTER_ARTICLES; a++) {
+            Pipeline pipe = JEDIS.pipelined();
+            for (int i = 0; i < VOTERS_PER_ARTICLE; i++) {
+                voters.add(pipe, prefix + a, "bench-user" + voter(a, i), expireAt);
+            }
+            pipe.sync();
+        }
+        return usedMemory() - before;
+    }
+
+    private static int voter(int article, int i) {
+        return (int) ((article * 7919L + i * 104729L) % VOTER_USERS);
+    }
+
+    private static long usedMemory() {
+        for (String line : JEDIS.info("memory").split("\r\n")) {
+            if (line.startsWith("used_memory:")) {
+                return Long.parseLong(line.substring("used_memory:".length()));
+            }
+        }
+        return 0;
+    }
+
+    private static void print(String name, long start, long end) {
+        double seconds = (end - start) / 1000.0;
+        System.out.println(name + ": " + seconds + " seconds, " + (long) (TIMES / seconds) + " ops/s");
+    }
+
+    public static void main(String[] args) {
+        Chapter01Benchmark benchmark = new Chapter01Benchmark();
+        benchmark.articleVote();
+        benchmark.articleVoteScript();
+        benchmark.voterMemory();
+    }
+}
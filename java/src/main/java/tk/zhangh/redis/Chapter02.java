@@ -3,13 +3,24 @@ package tk.zhangh.redis;
 import com.alibaba.fastjson.JSON;
 import lombok.AllArgsConstructor;
 import lombok.Data;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Tuple;
-import redis.clients.jedis.ZParams;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import redis.clients.jedis.*;
+import redis.clients.util.SafeEncoder;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 /**
@@ -17,9 +28,79 @@ import java.util.function.Function;
  */
 public class Chapter02 {
 
+    /**
+     * 本地热门商品过滤器，为 null 时 canCache 通过 ZRANK 判断
+     */
+    @Setter
+    private HotItemFilter hotItemFilter;
+
+    /**
+     * 商品访问统计衰减速率 λ（每秒），大于 0 时 updateToken 使用衰减模式，见 DecayViewedThread；0 表示每次访问 score-1
+     */
+    private double viewDecayRate = 0;
+
+    /**
+     * 商品访问次数本地聚合，不为 null 时 updateToken 不直接写入 viewed:，需要启动 ViewCounter.FlushThread；
+     * 写入时使用与 viewDecayRate 相同的衰减模式
+     */
+    private ViewCounter viewCounter;
+
+    /**
+     * 登录令牌缓存的存储方式，默认存放在一个散列 login: 中；
+     * 分桶时 SessionReaperThread 需要设置相同的 LoginIndex，
+     * CleanSessionsThread、CleanFullSessionsThread 只支持 login:
+     */
+    @Setter
+    private LoginIndex loginIndex = LoginIndex.SINGLE;
+
+    /**
+     * 页面缓存过期时间（秒）
+     */
+    private int pageTtl = 300;
+
+    /**
+     * 页面缓存软过期时间（秒），超过后由一个调用者刷新，其他调用者继续使用旧页面，直到 pageTtl；0 表示不使用
+     */
+    private int softTtl = 0;
+
+    /**
+     * 跨进程合并页面获取的租约时间（毫秒），0 表示只在 JVM 内合并
+     */
+    @Setter
+    private long pageLeaseMillis = 0;
+
+    /**
+     * 等待同一 JVM 内其他调用者获取页面的最长时间（毫秒），超时后自行获取
+     */
+    @Setter
+    private long pageWaitMillis = 5000;
+
+    /**
+     * 页面缓存编码，为 null 时以文本存储；读取时总是按 PageCodec.decode 解码，已压缩的页面在关闭编码后仍可读取
+     */
+    @Setter
+    private PageCodec pageCodec;
+
+    /**
+     * 页面缓存的请求key，默认忽略广告跟踪参数
+     */
+    @Setter
+    private RequestKey requestKey = new RequestKey("utm_*", "gclid", "fbclid");
+
+    /**
+     * 页面本地一级缓存，为 null 时每次读取 Redis；命中统计见 PageL1Cache
+     */
+    @Getter
+    private PageL1Cache l1Cache;
+
+    @Getter
+    private final CacheStats cacheStats = new CacheStats();
+
+    private final ConcurrentHashMap<String, CompletableFuture<String>> loadingPages = new ConcurrentHashMap<>();
+
     /*=======================================购物网站Web应用====================================================================
     使用9个缓存结构：
-    1. 登录令牌缓存（login:）
+    1. 登录令牌缓存（login: 或分桶的 login:BUCKET）
     2. 最近访问令牌缓存（recent:）
     3. 用户最近访问商品缓存（viewed:TOKEN）
     4. 购物车缓存（cart:SESSION）
@@ -31,11 +112,25 @@ public class Chapter02 {
      */
 
 
+    public void setViewDecayRate(double viewDecayRate) {
+        this.viewDecayRate = viewDecayRate;
+        if (viewCounter != null) {
+            viewCounter.setDecayRate(viewDecayRate);
+        }
+    }
+
+    public void setViewCounter(ViewCounter viewCounter) {
+        this.viewCounter = viewCounter;
+        if (viewCounter != null) {
+            viewCounter.setDecayRate(viewDecayRate);
+        }
+    }
+
     /**
      * 根据token查找用户
      */
     public String checkToken(Jedis conn, String token) {
-        return conn.hget("login:", token);
+        return loginIndex.get(conn, token);
     }
 
     /**
@@ -43,13 +138,228 @@ public class Chapter02 {
      */
     public void updateToken(Jedis conn, String token, String user, String... item) {
         long timestamp = System.currentTimeMillis() / 1000;
-        conn.hset("login:", token, user);  // 登录令牌
+        loginIndex.set(conn, token, user);  // 登录令牌
         conn.zadd("recent:", timestamp, token);  // 最近访问令牌缓存添加记录
         if (item != null) {
             // 访问了具体商品
             conn.zadd("viewed:" + token, timestamp, item[0]);  // 用户最近访问商品缓存添加记录
             conn.zremrangeByRank("viewed:" + token, 0, -26);  // 保留最近的25个
-            conn.zincrby("viewed:", -1, item[0]);  // 每预览一次商品 score-1，保证浏览最多的商品在有序集合最前端
+            if (viewCounter != null) {
+                viewCounter.record(item[0]);  // 本地聚合，定期写入
+            } else if (viewDecayRate > 0) {
+                // 衰减模式：越晚的访问权重越大
+                decayViews(conn, Collections.singletonMap(item[0], 1L), viewDecayRate);
+            } else {
+                conn.zincrby("viewed:", -1, item[0]);  // 每预览一次商品 score-1，保证浏览最多的商品在有序集合最前端
+            }
+        }
+    }
+
+    /**
+     * 衰减模式写入商品访问次数，一次脚本调用
+     */
+    static void decayViews(Jedis conn, Map<String, Long> views, double decayRate) {
+        List<String> args = new ArrayList<>(views.size() * 2 + 2);
+        args.add(String.valueOf(System.currentTimeMillis() / 1000.0));
+        args.add(String.valueOf(decayRate));
+        for (Map.Entry<String, Long> entry : views.entrySet()) {
+            args.add(entry.getKey());
+            args.add(String.valueOf(entry.getValue()));
+        }
+        DECAY_VIEWS.call(conn, Arrays.asList("viewed:", "viewed:epoch"), args);
+    }
+
+    /**
+     * 衰减模式的商品访问脚本
+     * KEYS: viewed:, viewed:epoch  ARGV: 当前时间（秒）, 衰减速率, 商品, 访问次数...
+     * 每次访问分数减少 e^(λ(t - epoch))，基准时刻不存在时以当前时间为基准
+     */
+    private static final LuaScript DECAY_VIEWS = new LuaScript(
+            "local epoch = redis.call('GET', KEYS[2]) " +
+            "if not epoch then " +
+            "  epoch = ARGV[1] " +
+            "  redis.call('SET', KEYS[2], epoch) " +
+            "end " +
+            "local weight = math.exp(tonumber(ARGV[2]) * (tonumber(ARGV[1]) - tonumber(epoch))) " +
+            "for i = 3, #ARGV, 2 do " +
+            "  redis.call('ZINCRBY', KEYS[1], -weight * tonumber(ARGV[i + 1]), ARGV[i]) " +
+            "end " +
+            "return #ARGV / 2 - 1");
+
+    /**
+     * 延迟批量更新token
+     * updateToken 只写本地缓冲：每个 token 只保留最新的访问时间和最近访问的商品，商品访问次数在本地累加；
+     * 每 flushInterval 毫秒或缓冲达到 maxEntries 条时通过一次流水线写入。
+     * 缓冲已满时 updateToken 阻塞等待写入完成。写入前 checkToken 看不到新的登录，延迟不超过 flushInterval。
+     * 写入失败时把取出的数据放回缓冲（缓冲中较新的数据优先），等待 flushInterval 后重试；
+     * 放回后缓冲最多 2 * maxEntries 条，超过的部分丢弃，见 droppedEntries。
+     * 登录令牌的存储方式、商品访问的衰减模式和本地聚合与 app 的 updateToken 相同
+     */
+    public static class TokenWriteBehindThread extends DaemonThread {
+        private final Chapter02 app;
+        private final Jedis conn;
+        private final long flushInterval;
+        private final int maxEntries;
+        private final Object lock = new Object();
+
+        private Map<String, String> logins = new HashMap<>();  // 登录令牌
+        private Map<String, Double> recent = new HashMap<>();  // 最近访问时间
+        private Map<String, Map<String, Double>> viewed = new HashMap<>();  // 用户最近访问商品
+        private Map<String, Long> views = new HashMap<>();  // 商品访问次数
+
+        @Getter
+        private final AtomicLong failedFlushes = new AtomicLong();  // 写入失败次数
+        @Getter
+        private final AtomicLong droppedEntries = new AtomicLong();  // 写入失败且缓冲已满而丢弃的条数
+
+        public TokenWriteBehindThread(Chapter02 app, Jedis conn, long flushInterval, int maxEntries) {
+            this.app = app;
+            this.conn = conn;
+            this.flushInterval = flushInterval;
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * 更新token
+         */
+        public void updateToken(String token, String user, String... item) throws InterruptedException {
+            double timestamp = System.currentTimeMillis() / 1000;
+            synchronized (lock) {
+                while (size() >= maxEntries && !quit) {
+                    // 缓冲已满，唤醒写入线程并等待
+                    lock.notifyAll();
+                    lock.wait(flushInterval);
+                }
+                logins.put(token, user);
+                recent.put(token, timestamp);
+                if (item != null && item.length > 0) {
+                    viewed.computeIfAbsent(token, k -> new HashMap<>()).put(item[0], timestamp);
+                    if (app.viewCounter != null) {
+                        app.viewCounter.record(item[0]);  // 本地聚合，由 ViewCounter.FlushThread 写入
+                    } else {
+                        views.merge(item[0], 1L, Long::sum);
+                    }
+                }
+                if (size() >= maxEntries) {
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        private int size() {
+            return logins.size() + views.size();
+        }
+
+        @Override
+        public void run() {
+            while (!quit) {
+                try {
+                    flush(false);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            try {
+                flush(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void flush(boolean last) throws InterruptedException {
+            Map<String, String> logins;
+            Map<String, Double> recent;
+            Map<String, Map<String, Double>> viewed;
+            Map<String, Long> views;
+            synchronized (lock) {
+                if (!last && size() < maxEntries) {
+                    lock.wait(flushInterval);
+                }
+                logins = this.logins;
+                recent = this.recent;
+                viewed = this.viewed;
+                views = this.views;
+                this.logins = new HashMap<>();
+                this.recent = new HashMap<>();
+                this.viewed = new HashMap<>();
+                this.views = new HashMap<>();
+                lock.notifyAll();
+            }
+            if (logins.isEmpty() && views.isEmpty()) {
+                return;
+            }
+
+            boolean synced = false;
+            try {
+                Pipeline pipe = conn.pipelined();
+                if (!logins.isEmpty()) {
+                    app.loginIndex.setAll(pipe, logins);
+                    pipe.zadd("recent:", recent);
+                }
+                for (Map.Entry<String, Map<String, Double>> entry : viewed.entrySet()) {
+                    pipe.zadd("viewed:" + entry.getKey(), entry.getValue());
+                    pipe.zremrangeByRank("viewed:" + entry.getKey(), 0, -26);  // 保留最近的25个
+                }
+                double decayRate = app.viewDecayRate;
+                if (decayRate <= 0) {
+                    for (Map.Entry<String, Long> entry : views.entrySet()) {
+                        pipe.zincrby("viewed:", -entry.getValue(), entry.getKey());
+                    }
+                }
+                pipe.sync();
+                synced = true;
+                if (decayRate > 0 && !views.isEmpty()) {
+                    decayViews(conn, views, decayRate);
+                }
+            } catch (RuntimeException e) {
+                failedFlushes.incrementAndGet();
+                if (synced) {
+                    // 只有衰减模式的访问次数写入失败
+                    restore(Collections.emptyMap(), recent, viewed, views);
+                } else {
+                    restore(logins, recent, viewed, views);
+                }
+                if (!last) {
+                    sleep(flushInterval);
+                }
+            }
+        }
+
+        /**
+         * 放回写入失败的数据，缓冲中已有的数据更新，优先保留
+         */
+        private void restore(Map<String, String> logins, Map<String, Double> recent,
+                             Map<String, Map<String, Double>> viewed, Map<String, Long> views) {
+            synchronized (lock) {
+                int limit = maxEntries * 2;
+                for (Map.Entry<String, String> entry : logins.entrySet()) {
+                    String token = entry.getKey();
+                    if (this.logins.containsKey(token)) {
+                        // 缓冲中有更新的访问，只补上更早访问的商品
+                        Map<String, Double> items = viewed.get(token);
+                        if (items != null) {
+                            Map<String, Double> current = this.viewed.computeIfAbsent(token, k -> new HashMap<>());
+                            items.forEach(current::putIfAbsent);
+                        }
+                    } else if (size() < limit) {
+                        this.logins.put(token, entry.getValue());
+                        this.recent.put(token, recent.get(token));
+                        if (viewed.containsKey(token)) {
+                            this.viewed.put(token, viewed.get(token));
+                        }
+                    } else {
+                        droppedEntries.incrementAndGet();
+                    }
+                }
+                for (Map.Entry<String, Long> entry : views.entrySet()) {
+                    if (this.views.containsKey(entry.getKey()) || size() < limit) {
+                        this.views.merge(entry.getKey(), entry.getValue(), Long::sum);
+                    } else {
+                        droppedEntries.incrementAndGet();
+                    }
+                }
+            }
         }
     }
 
@@ -99,7 +409,109 @@ public class Chapter02 {
         if (count <= 0) {
             conn.hdel("cart:" + session, item);
         } else {
-            conn.hset("cart:" + session, item, String.valueOf(conn));
+            conn.hset("cart:" + session, item, String.valueOf(count));
+        }
+    }
+
+    /**
+     * 批量修改购物车商品数量，一次脚本调用完成，数量减到 0 及以下时移除商品
+     *
+     * @param deltas 商品及数量增量，负数表示减少
+     * @return 修改后的商品数量
+     */
+    public Cart updateCart(Jedis conn, String session, Map<String, Integer> deltas) {
+        Cart cart = new Cart(deltas.size());
+        if (deltas.isEmpty()) {
+            return cart;
+        }
+        List<String> args = new ArrayList<>(deltas.size() * 2);
+        for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+            args.add(entry.getKey());
+            args.add(String.valueOf(entry.getValue()));
+        }
+        @SuppressWarnings("unchecked")
+        List<Long> counts = (List<Long>) UPDATE_CART.call(conn, Collections.singletonList("cart:" + session), args);
+        for (int i = 0; i < counts.size(); i++) {
+            cart.add(args.get(i * 2), counts.get(i).intValue());
+        }
+        return cart;
+    }
+
+    /**
+     * 批量修改购物车脚本
+     * KEYS[1]: cart:SESSION  ARGV: 商品, 增量, 商品, 增量...
+     * 非数字的旧数据按 0 处理
+     */
+    private static final LuaScript UPDATE_CART = new LuaScript(
+            "local result = {} " +
+            "for i = 1, #ARGV, 2 do " +
+            "  local count = (tonumber(redis.call('HGET', KEYS[1], ARGV[i])) or 0) + tonumber(ARGV[i + 1]) " +
+            "  if count > 0 then " +
+            "    redis.call('HSET', KEYS[1], ARGV[i], count) " +
+            "  else " +
+            "    count = 0 " +
+            "    redis.call('HDEL', KEYS[1], ARGV[i]) " +
+            "  end " +
+            "  result[#result + 1] = count " +
+            "end " +
+            "return result");
+
+    /**
+     * 读取购物车
+     */
+    public Cart getCart(Jedis conn, String session) {
+        Map<String, String> items = conn.hgetAll("cart:" + session);
+        Cart cart = new Cart(items.size());
+        for (Map.Entry<String, String> entry : items.entrySet()) {
+            try {
+                cart.add(entry.getKey(), Integer.parseInt(entry.getValue()));
+            } catch (NumberFormatException e) {
+                // 旧版本 addToCart 写入的非数字数量，忽略
+            }
+        }
+        return cart;
+    }
+
+    /**
+     * 购物车，商品和数量分别存放在数组中
+     */
+    public static class Cart {
+        private final String[] items;
+        private final int[] counts;
+        private int size;
+
+        private Cart(int capacity) {
+            items = new String[capacity];
+            counts = new int[capacity];
+        }
+
+        private void add(String item, int count) {
+            items[size] = item;
+            counts[size++] = count;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public String getItem(int index) {
+            return items[index];
+        }
+
+        public int getCount(int index) {
+            return counts[index];
+        }
+
+        /**
+         * 商品数量，不在购物车中时返回 0
+         */
+        public int count(String item) {
+            for (int i = 0; i < size; i++) {
+                if (items[i].equals(item)) {
+                    return counts[i];
+                }
+            }
+            return 0;
         }
     }
 
@@ -144,6 +556,167 @@ public class Chapter02 {
         }
     }
 
+    /**
+     * 清理会话守护线程，并行、流水线版本
+     * 每轮根据超出的会话数计算需要清理的分数区间，平均切分给多个工作线程；
+     * 工作线程按 ZRANGEBYSCORE ... LIMIT 分批获取 token，每批的清理命令通过一次流水线提交。
+     * 批大小随积压量调整，没有积压时只等待 idleSleep 毫秒
+     */
+    public static class SessionReaperThread extends DaemonThread {
+        private static final int MIN_BATCH = 100;
+        private static final int MAX_BATCH = 5000;
+
+        private final JedisPool pool;
+        private final int limit;  // 保留的最大会话数
+        private final int workers;
+        private final boolean cleanCarts;  // 是否同时清理购物车
+        private final ExecutorService executor;
+
+        @Setter
+        private long idleSleep = 100;
+
+        @Setter
+        private LoginIndex loginIndex = LoginIndex.SINGLE;
+
+        @Getter
+        private final AtomicLong reaped = new AtomicLong();  // 已清理的会话数
+        @Getter
+        private volatile long backlog;  // 最近一轮的积压会话数
+        @Getter
+        private volatile long lagSeconds;  // 最近一轮最旧会话比应保留的最旧会话早多少秒，追上时为 0
+
+        public SessionReaperThread(JedisPool pool, int limit, int workers, boolean cleanCarts) {
+            this.pool = pool;
+            this.limit = limit;
+            this.workers = workers;
+            this.cleanCarts = cleanCarts;
+            this.executor = Executors.newFixedThreadPool(workers);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!quit) {
+                    if (!reapOnce()) {
+                        try {
+                            sleep(idleSleep);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        /**
+         * 执行一轮清理
+         *
+         * @return 是否有积压
+         */
+        private boolean reapOnce() {
+            long excess;
+            double oldest;
+            double cutoff;
+            double boundary;
+            boolean tie;  // 需要清理和需要保留的会话分数相同
+            try (Jedis conn = pool.getResource()) {
+                excess = conn.zcard("recent:") - limit;
+                if (excess <= 0) {
+                    backlog = 0;
+                    lagSeconds = 0;
+                    return false;
+                }
+                // 最旧的会话，最后一个需要清理的会话，第一个需要保留的会话
+                Pipeline pipe = conn.pipelined();
+                Response<Set<Tuple>> first = pipe.zrangeWithScores("recent:", 0, 0);
+                Response<Set<Tuple>> last = pipe.zrangeWithScores("recent:", excess - 1, excess);
+                pipe.sync();
+                if (first.get().isEmpty() || last.get().isEmpty()) {
+                    return false;
+                }
+                Iterator<Tuple> tuples = last.get().iterator();
+                oldest = first.get().iterator().next().getScore();
+                cutoff = tuples.next().getScore();
+                boundary = tuples.hasNext() ? tuples.next().getScore() : cutoff;
+                tie = last.get().size() > 1 && boundary == cutoff;
+            }
+            backlog = excess;
+            lagSeconds = (long) (boundary - oldest);
+
+            // 按分数区间 (min, max] 切分，最后一个区间以 cutoff 结束；分数与 cutoff 相同的会话有需要保留的，最后单独按数量清理
+            int batch = (int) Math.max(MIN_BATCH, Math.min(MAX_BATCH, excess / workers));
+            List<Future<?>> futures = new ArrayList<>();
+            double step = (cutoff - oldest) / workers;
+            for (int i = 0; i < workers; i++) {
+                String min = i == 0 ? "-inf" : "(" + (oldest + step * i);
+                double upper = i < workers - 1 ? Math.min(oldest + step * (i + 1), cutoff) : cutoff;
+                String max = (tie && upper == cutoff ? "(" : "") + upper;
+                futures.add(executor.submit(() -> reapRange(min, max, batch)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            if (tie) {
+                try (Jedis conn = pool.getResource()) {
+                    long remaining = conn.zcard("recent:") - limit;
+                    if (remaining > 0) {
+                        reap(conn, conn.zrangeByScore("recent:", cutoff, cutoff, 0, (int) remaining));
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 分批清理分数区间内的会话
+         */
+        private void reapRange(String min, String max, int batch) {
+            try (Jedis conn = pool.getResource()) {
+                while (!quit) {
+                    Set<String> tokenSet = conn.zrangeByScore("recent:", min, max, 0, batch);
+                    if (tokenSet.isEmpty()) {
+                        return;
+                    }
+                    reap(conn, tokenSet);
+                }
+            }
+        }
+
+        /**
+         * 通过一次流水线清理会话
+         */
+        private void reap(Jedis conn, Set<String> tokenSet) {
+            if (tokenSet.isEmpty()) {
+                return;
+            }
+            String[] tokens = tokenSet.toArray(new String[tokenSet.size()]);
+            List<String> sessionKeys = new ArrayList<String>();
+            for (String token : tokens) {
+                sessionKeys.add("viewed:" + token);
+                if (cleanCarts) {
+                    sessionKeys.add("cart:" + token);
+                }
+            }
+            Pipeline pipe = conn.pipelined();
+            pipe.del(sessionKeys.toArray(new String[sessionKeys.size()]));
+            loginIndex.removeAll(pipe, tokenSet);
+            pipe.zrem("recent:", tokens);
+            pipe.sync();
+            reaped.addAndGet(tokens.length);
+        }
+    }
+
     /**
      * 缓存请求对应
      */
@@ -153,16 +726,233 @@ public class Chapter02 {
         }
 
         String pageKey = "cache:" + hashRequest(request);
-        String content = conn.get(pageKey);
+        if (l1Cache != null) {
+            String cached = l1Cache.get(pageKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        String content;
+        boolean fresh = true;
+        if (softTtl > 0) {
+            Pipeline pipe = conn.pipelined();
+            Response<byte[]> page = pipe.get(SafeEncoder.encode(pageKey));
+            Response<Boolean> notStale = pipe.exists("fresh:" + pageKey);
+            pipe.sync();
+            content = PageCodec.decode(page.get());
+            fresh = notStale.get();
+        } else {
+            content = readPage(conn, pageKey);
+        }
+
+        if (content != null) {
+            cacheStats.l2Hits.incrementAndGet();
+            if (fresh && l1Cache != null) {
+                l1Cache.put(pageKey, content);
+            }
+            if (!fresh && callback != null) {
+                // 已过软过期时间：只有一个调用者刷新，其他调用者直接返回旧页面
+                String refreshed = refreshPage(conn, request, pageKey, callback);
+                if (refreshed != null) {
+                    return refreshed;
+                }
+                cacheStats.staleServes.incrementAndGet();
+            }
+            return content;
+        }
+        cacheStats.l2Misses.incrementAndGet();
+        if (callback == null) {
+            return null;
+        }
+        return loadPage(conn, request, pageKey, callback);
+    }
+
+    /**
+     * 设置页面本地一级缓存，本地过期时间不能超过页面缓存的（软）过期时间
+     */
+    public void setL1Cache(PageL1Cache l1Cache) {
+        checkL1Ttl(l1Cache, pageTtl, softTtl);
+        this.l1Cache = l1Cache;
+    }
+
+    /**
+     * 设置页面缓存过期时间（秒），不能小于页面本地一级缓存的过期时间
+     */
+    public void setPageTtl(int pageTtl) {
+        checkL1Ttl(l1Cache, pageTtl, softTtl);
+        this.pageTtl = pageTtl;
+    }
+
+    /**
+     * 设置页面缓存软过期时间（秒），不能小于页面本地一级缓存的过期时间
+     */
+    public void setSoftTtl(int softTtl) {
+        checkL1Ttl(l1Cache, pageTtl, softTtl);
+        this.softTtl = softTtl;
+    }
 
-        if (content == null && callback != null) {
-            content = callback.apply(request);
-            conn.setex(pageKey, 300, content);
+    private static void checkL1Ttl(PageL1Cache l1Cache, int pageTtl, int softTtl) {
+        long ttl = (softTtl > 0 ? softTtl : pageTtl) * 1000L;
+        if (l1Cache != null && l1Cache.getTtlMillis() > ttl) {
+            throw new IllegalArgumentException("L1 TTL " + l1Cache.getTtlMillis() + "ms exceeds page TTL " + ttl + "ms");
         }
+    }
+
+    /**
+     * 页面缓存未命中时获取页面
+     * 同一个 JVM 内同一页面只有一个调用者执行回调，其他调用者等待结果
+     */
+    private String loadPage(Jedis conn, String request, String pageKey, Function<String, String> callback) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> loading = loadingPages.putIfAbsent(pageKey, future);
+        if (loading != null) {
+            cacheStats.coalescedWaits.incrementAndGet();
+            String content = await(loading);
+            if (content != null) {
+                return content;
+            }
+            // 刷新方没有抢到租约或等待超时，自行获取
+            return loadPageWithLease(conn, request, pageKey, callback);
+        }
+        try {
+            String content = loadPageWithLease(conn, request, pageKey, callback);
+            future.complete(content);
+            return content;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingPages.remove(pageKey, future);
+        }
+    }
+
+    /**
+     * 等待其他调用者获取的页面，超时或对方放弃时返回 null
+     */
+    private String await(CompletableFuture<String> loading) {
+        try {
+            return loading.get(pageWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * 跨进程合并：抢到租约的进程执行回调，其他进程等待页面写入，超时后自行执行回调
+     */
+    private String loadPageWithLease(Jedis conn, String request, String pageKey, Function<String, String> callback) {
+        if (pageLeaseMillis <= 0) {
+            return callOrigin(conn, request, pageKey, callback);
+        }
+        String lease = "lease:" + pageKey;
+        String token = UUID.randomUUID().toString();
+        if ("OK".equals(conn.set(lease, token, "NX", "PX", pageLeaseMillis))) {
+            try {
+                return callOrigin(conn, request, pageKey, callback);
+            } finally {
+                LuaScript.RELEASE_LEASE.call(conn, Collections.singletonList(lease), Collections.singletonList(token));
+            }
+        }
+
+        cacheStats.coalescedWaits.incrementAndGet();
+        long end = System.currentTimeMillis() + pageLeaseMillis;
+        while (System.currentTimeMillis() < end) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            String content = readPage(conn, pageKey);
+            if (content != null) {
+                return content;
+            }
+        }
+        return callOrigin(conn, request, pageKey, callback);
+    }
+
+    /**
+     * 刷新过了软过期时间的页面
+     * 放弃刷新时以 null 完成 future，等待的 loadPage 会自行获取
+     *
+     * @return 刷新后的页面，其他调用者正在刷新时返回 null
+     */
+    private String refreshPage(Jedis conn, String request, String pageKey, Function<String, String> callback) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        if (loadingPages.putIfAbsent(pageKey, future) != null) {
+            return null;
+        }
+        String lease = "lease:" + pageKey;
+        String token = UUID.randomUUID().toString();
+        try {
+            if (pageLeaseMillis > 0 && !"OK".equals(conn.set(lease, token, "NX", "PX", pageLeaseMillis))) {
+                return null;
+            }
+            String content = callOrigin(conn, request, pageKey, callback);
+            future.complete(content);
+            return content;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            future.complete(null);  // 没有抢到租约时通知等待者，已完成时无效
+            if (pageLeaseMillis > 0) {
+                LuaScript.RELEASE_LEASE.call(conn, Collections.singletonList(lease), Collections.singletonList(token));
+            }
+            loadingPages.remove(pageKey, future);
+        }
+    }
 
+    /**
+     * 执行回调并写入页面缓存
+     */
+    private String callOrigin(Jedis conn, String request, String pageKey, Function<String, String> callback) {
+        cacheStats.originCalls.incrementAndGet();
+        String content = callback.apply(request);
+        Pipeline pipe = conn.pipelined();
+        if (pageCodec != null) {
+            pipe.setex(SafeEncoder.encode(pageKey), pageTtl, pageCodec.encode(content));
+        } else {
+            pipe.setex(pageKey, pageTtl, content);
+        }
+        if (softTtl > 0) {
+            pipe.setex("fresh:" + pageKey, softTtl, "1");
+        }
+        pipe.sync();
+        if (l1Cache != null) {
+            l1Cache.put(pageKey, content);
+        }
         return content;
     }
 
+    /**
+     * 读取页面缓存
+     */
+    private String readPage(Jedis conn, String pageKey) {
+        // 无论是否开启编码都检查格式头，关闭编码后已压缩的页面仍可读取
+        return PageCodec.decode(conn.get(SafeEncoder.encode(pageKey)));
+    }
+
+    /**
+     * 页面缓存统计
+     */
+    @Getter
+    public static class CacheStats {
+        private final AtomicLong originCalls = new AtomicLong();  // 执行回调的次数
+        private final AtomicLong coalescedWaits = new AtomicLong();  // 等待其他调用者获取页面的次数
+        private final AtomicLong staleServes = new AtomicLong();  // 返回过期页面的次数
+        private final AtomicLong l2Hits = new AtomicLong();  // Redis 页面缓存命中次数
+        private final AtomicLong l2Misses = new AtomicLong();  // Redis 页面缓存未命中次数
+    }
+
     /**
      * 添加数据行时间调度缓存记录
      */
@@ -171,6 +961,13 @@ public class Chapter02 {
         conn.zadd("schedule:", System.currentTimeMillis() / 1000, rowId);  // 数据行调度时刻缓存添加记录
     }
 
+    /**
+     * 读取数据行缓存，自动识别 JSON / 二进制编码
+     */
+    public Inventory getCachedRow(Jedis conn, String rowId) {
+        return RowCodec.decodeAny(conn.get(SafeEncoder.encode("inv:" + rowId)));
+    }
+
     /**
      * 数据行缓存定时更新任务
      */
@@ -211,6 +1008,147 @@ public class Chapter02 {
         }
     }
 
+    /**
+     * 数据行缓存定时更新任务，批量、多线程版本
+     * 每轮通过脚本一次认领最多 batch 个到期的数据行（同时写入下次调度时刻、移除延迟不大于 0 的数据行），
+     * 在工作线程池中并行加载数据行，再通过一次流水线写入 inv:ROW_ID。
+     * 认领是原子的，多个进程同时调度也不会重复加载。
+     * 没有到期数据行时休眠到最早的调度时刻，最多休眠 maxSleep 毫秒以发现新加入的数据行。
+     * 加载失败的数据行不写入，计入 failedRows 并记录 lastError
+     */
+    public static class RowSchedulerThread extends DaemonThread {
+        private final Jedis conn;
+        private final int batch;
+        private final ExecutorService executor;
+        private final Function<String, Inventory> loader;
+
+        @Setter
+        private long maxSleep = 1000;
+
+        /**
+         * 数据行编码，读取方通过 getCachedRow 自动识别
+         */
+        @Setter
+        private RowCodec rowCodec = RowCodec.JSON_CODEC;
+
+        @Getter
+        private final AtomicLong cachedRows = new AtomicLong();  // 已缓存的数据行次数
+        @Getter
+        private final AtomicLong failedRows = new AtomicLong();  // 加载失败、未写入的数据行次数
+        @Getter
+        private volatile Throwable lastError;  // 最近一次加载失败的原因
+        @Getter
+        private volatile long lagMillis;  // 最近一轮中最早到期的数据行延迟了多少毫秒
+
+        public RowSchedulerThread(Jedis conn, int workers, int batch) {
+            this(conn, workers, batch, Inventory::get);
+        }
+
+        public RowSchedulerThread(Jedis conn, int workers, int batch, Function<String, Inventory> loader) {
+            this.conn = conn;
+            this.batch = batch;
+            this.executor = Executors.newFixedThreadPool(workers);
+            this.loader = loader;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!quit) {
+                    int claimed = cacheDueRows();
+                    if (claimed >= batch) {
+                        continue;  // 可能还有到期的数据行
+                    }
+                    Set<Tuple> range = conn.zrangeWithScores("schedule:", 0, 0);
+                    long wait = maxSleep;
+                    if (!range.isEmpty()) {
+                        long due = (long) (range.iterator().next().getScore() * 1000);
+                        wait = Math.max(0, Math.min(maxSleep, due - System.currentTimeMillis()));
+                    }
+                    if (wait > 0) {
+                        try {
+                            sleep(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        /**
+         * 缓存一批到期的数据行
+         *
+         * @return 认领的数据行数
+         */
+        private int cacheDueRows() {
+            long nowMillis = System.currentTimeMillis();
+            List<?> due = (List<?>) CLAIM_ROWS.call(conn, Arrays.asList("schedule:", "delay:"),
+                    Arrays.asList(String.valueOf(nowMillis / 1000), String.valueOf(batch)));
+            if (due.isEmpty()) {
+                lagMillis = 0;
+                return 0;
+            }
+
+            List<String> rowIds = new ArrayList<>();
+            List<Future<Inventory>> rows = new ArrayList<>();
+            double earliest = Double.MAX_VALUE;
+            for (int i = 0; i < due.size(); i += 2) {
+                String rowId = (String) due.get(i);
+                earliest = Math.min(earliest, Double.parseDouble((String) due.get(i + 1)));
+                rowIds.add(rowId);
+                rows.add(executor.submit(() -> loader.apply(rowId)));
+            }
+            lagMillis = Math.max(0, nowMillis - (long) (earliest * 1000));
+
+            Pipeline pipe = conn.pipelined();
+            int cached = 0;
+            for (int i = 0; i < rowIds.size(); i++) {
+                try {
+                    pipe.set(SafeEncoder.encode("inv:" + rowIds.get(i)), rowCodec.encode(rows.get(i).get()));
+                    cached++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // 加载失败的数据行保留旧缓存，等待下次调度
+                    failedRows.incrementAndGet();
+                    lastError = e.getCause();
+                }
+            }
+            pipe.sync();
+            cachedRows.addAndGet(cached);
+            return due.size() / 2;
+        }
+    }
+
+    /**
+     * 认领到期数据行脚本
+     * KEYS: schedule:, delay:  ARGV: 当前时间（秒）, 最大数量
+     * 返回 数据行id, 原调度时刻, ...
+     */
+    private static final LuaScript CLAIM_ROWS = new LuaScript(
+            "local rows = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, ARGV[2]) " +
+            "local result = {} " +
+            "for i = 1, #rows, 2 do " +
+            "  local row = rows[i] " +
+            "  local delay = tonumber(redis.call('ZSCORE', KEYS[2], row) or '0') " +
+            "  if delay <= 0 then " +
+            "    redis.call('ZREM', KEYS[2], row) " +
+            "    redis.call('ZREM', KEYS[1], row) " +
+            "    redis.call('DEL', 'inv:' .. row) " +
+            "  else " +
+            "    redis.call('ZADD', KEYS[1], tonumber(ARGV[1]) + delay, row) " +
+            "    result[#result + 1] = row " +
+            "    result[#result + 1] = rows[i + 1] " +
+            "  end " +
+            "end " +
+            "return result");
+
     @AllArgsConstructor
     public static class RescaleViewedThread extends DaemonThread {
         private Jedis conn;
@@ -218,7 +1156,7 @@ public class Chapter02 {
         @Override
         public void run() {
             while (!quit) {
-                conn.zremrangeByRank("viewed:", 0, -20001);  // 只保留前20000
+                conn.zremrangeByRank("viewed:", 20000, -1);  // 只保留前20000
                 ZParams params = new ZParams().weightsByDouble(0.5);
                 conn.zinterstore("viewed:", params, "viewed:");  // 保留为原来一般
                 try {
@@ -230,7 +1168,73 @@ public class Chapter02 {
         }
     }
 
+    /**
+     * 衰减模式的商品访问统计维护线程，配合 setViewDecayRate 使用
+     * <p>
+     * 第 i 次访问发生在 t_i 时，商品在 t 时刻的热度为 Σ e^(-λ(t - t_i))，即每过 ln2/λ 秒热度减半。
+     * 写入时记录 e^(λ(t_i - epoch))，所有商品的热度都等于该分数乘以同一个因子 e^(-λ(t - epoch))，
+     * 排名不变，因此不需要定期改写整个有序集合。
+     * λ = ln2 / 0.5 时与 RescaleViewedThread 每 500 毫秒减半的排名一致，
+     * 区别只在于减半是连续的，而不是每 500 毫秒跳变一次。
+     * <p>
+     * 分数随时间指数增长，λ(t - epoch) 超过 maxExponent 时把所有分数乘以 e^(-λ(t - epoch)) 并把基准时刻移到当前时间，
+     * 这是唯一需要改写整个有序集合的操作，间隔为 maxExponent / λ 秒。
+     * 每 interval 毫秒只删除排名 20000 之后的商品
+     */
+    public static class DecayViewedThread extends DaemonThread {
+        private final Jedis conn;
+        private final double rate;
+        private final double maxExponent;
+        private final long interval;
+
+        @Getter
+        private final AtomicLong rebases = new AtomicLong();
+
+        public DecayViewedThread(Jedis conn, double rate, double maxExponent, long interval) {
+            this.conn = conn;
+            this.rate = rate;
+            this.maxExponent = maxExponent;
+            this.interval = interval;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!quit) {
+                conn.zremrangeByRank("viewed:", 20000, -1);  // 只保留前20000
+                String epoch = conn.get("viewed:epoch");
+                double now = System.currentTimeMillis() / 1000.0;
+                if (epoch != null && rate * (now - Double.parseDouble(epoch)) > maxExponent) {
+                    REBASE_VIEWED.call(conn, Arrays.asList("viewed:", "viewed:epoch"),
+                            Arrays.asList(String.valueOf(now), String.valueOf(rate)));
+                    rebases.incrementAndGet();
+                }
+                try {
+                    sleep(interval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 移动衰减基准时刻脚本
+     * KEYS: viewed:, viewed:epoch  ARGV: 新的基准时刻, 衰减速率
+     */
+    private static final LuaScript REBASE_VIEWED = new LuaScript(
+            "local epoch = redis.call('GET', KEYS[2]) " +
+            "if not epoch then return 0 end " +
+            "local factor = math.exp(-tonumber(ARGV[2]) * (tonumber(ARGV[1]) - tonumber(epoch))) " +
+            "redis.call('ZUNIONSTORE', KEYS[1], 1, KEYS[1], 'WEIGHTS', factor) " +
+            "redis.call('SET', KEYS[2], ARGV[1]) " +
+            "return 1");
+
     public boolean canCache(Jedis conn, String request) {
+        if (hotItemFilter != null) {
+            return canCacheLocal(request);
+        }
         try {
             // 获取参数
             URL url = new URL(request);
@@ -253,6 +1257,36 @@ public class Chapter02 {
         }
     }
 
+    /**
+     * 使用本地热门商品过滤器判断是否可以缓存，直接扫描查询参数，不访问 Redis
+     */
+    private boolean canCacheLocal(String request) {
+        int query = request.indexOf('?');
+        if (query < 0) {
+            return false;
+        }
+        int end = request.indexOf('#', query);
+        end = end < 0 ? request.length() : end;
+        int itemFrom = -1;
+        int itemTo = -1;
+        for (int from = query + 1; from < end; ) {
+            int to = request.indexOf('&', from);
+            to = to < 0 || to > end ? end : to;
+            int eq = request.indexOf('=', from);
+            int nameTo = eq < 0 || eq > to ? to : eq;
+            if (nameTo - from == 1 && request.charAt(from) == '_') {
+                return false;  // 动态参数
+            }
+            if (nameTo - from == 4 && request.startsWith("item", from)) {
+                // 与 HashMap 一致，重复参数取最后一个
+                itemFrom = nameTo == to ? -1 : nameTo + 1;
+                itemTo = to;
+            }
+            from = to + 1;
+        }
+        return itemFrom >= 0 && hotItemFilter.contains(request, itemFrom, itemTo);
+    }
+
     public String extractItemId(Map<String, String> params) {
         return params.get("item");
     }
@@ -262,10 +1296,11 @@ public class Chapter02 {
     }
 
     public String hashRequest(String request) {
-        return String.valueOf(request.hashCode());
+        return requestKey.hash(request);
     }
 
     @AllArgsConstructor
+    @NoArgsConstructor
     @Data
     public static class Inventory {
         private String id;
@@ -0,0 +1,308 @@
+package tk.zhangh.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.*;
+import java.util.function.Function;
+
+import static tk.zhangh.redis.Config.HOST;
+import static tk.zhangh.redis.Config.PORT;
+
+/**
+ * Chapter02 不同实现的性能对比
+ * Created by ZhangHao on 2017/10/13.
+ */
+public class Chapter02Benchmark {
+
+    private static final int PAGES = 1000;
+    private static final int READS = 10000;
+    private static final int ZIPF_PAGES = 10000;
+    private static final int ZIPF_READS = 100000;
+    private static final int CODEC_ROUNDS = 1000;
+    private static final int LOGINS = 100000;
+    private static final Jedis JEDIS = new Jedis(HOST, PORT);
+
+    /**
+     * 页面缓存：文本存储 / 压缩存储，每页内存占用和读写耗时
+     */
+    public void pageCache() {
+        pageCache("Text page", new Chapter02());
+        Chapter02 compressed = new Chapter02();
+        compressed.setPageCodec(new PageCodec(1024));
+        pageCache("Deflate page", compressed);
+    }
+
+    private void pageCache(String name, Chapter02 app) {
+        app.updateToken(JEDIS, "bench-token", "bench-user", "bench-item");
+        Function<String, String> callback = Chapter02Benchmark::render;
+
+        long before = usedMemory();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < PAGES; i++) {
+            JEDIS.del("cache:" + app.hashRequest(url(i)));
+            app.cacheRequest(JEDIS, url(i), callback);
+        }
+        long end = System.currentTimeMillis();
+        long memory = usedMemory() - before;
+        System.out.println(name + " SET: " + ((end - start) * 1000.0 / PAGES) + " us/page, "
+                + memory / PAGES + " bytes/page");
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < READS; i++) {
+            app.cacheRequest(JEDIS, url(i % PAGES), null);
+        }
+        end = System.currentTimeMillis();
+        System.out.println(name + " GET: " + ((end - start) * 1000.0 / READS) + " us/page");
+    }
+
+    /**
+     * 页面缓存命中率：String.hashCode / RequestKey
+     * 模拟 PAGES 个页面的 READS 次请求，参数顺序随机，部分请求带有广告跟踪参数；
+     * 命中率按缓存容量不限计算，即 1 - 不同key数 / 请求数
+     */
+    public void requestKeys() {
+        Random random = new Random(42);
+        RequestKey requestKey = new RequestKey("utm_*", "gclid", "fbclid");
+        Set<String> before = new HashSet<>();
+        Set<String> after = new HashSet<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            List<String> params = new ArrayList<>(Arrays.asList(
+                    "item=bench-item", "page=" + random.nextInt(PAGES), "sort=price"));
+            if (random.nextInt(10) < 3) {
+                params.add("utm_source=mail" + random.nextInt(5));
+            }
+            Collections.shuffle(params, random);
+            String request = "http://bench.com/?" + String.join("&", params);
+            before.add(String.valueOf(request.hashCode()));
+            after.add(requestKey.hash(request));
+        }
+        long end = System.nanoTime();
+        System.out.println("String.hashCode key hit rate: " + (1 - before.size() / (double) READS));
+        System.out.println("RequestKey hit rate: " + (1 - after.size() / (double) READS)
+                + ", " + (end - start) / READS + " ns/request including request generation");
+    }
+
+    /**
+     * 两级页面缓存：ZIPF_PAGES 个页面按 Zipf 分布访问 ZIPF_READS 次，对比只使用 Redis 和 L1 + Redis
+     */
+    public void twoTierCache() {
+        int[] requests = zipf(ZIPF_PAGES, ZIPF_READS, 1.0, new Random(42));
+        twoTierCache("Redis only", new Chapter02(), requests);
+
+        Chapter02 app = new Chapter02();
+        app.setL1Cache(new PageL1Cache(8 << 20, 60000));
+        twoTierCache("L1 + Redis", app, requests);
+        PageL1Cache l1 = app.getL1Cache();
+        Chapter02.CacheStats stats = app.getCacheStats();
+        long l2Reads = stats.getL2Hits().get() + stats.getL2Misses().get();
+        System.out.println("  L1 hit ratio: " + l1.getHits().get() / (double) ZIPF_READS
+                + ", L2 hit ratio: " + stats.getL2Hits().get() / (double) Math.max(1, l2Reads)
+                + ", L1 memory: " + l1.getBytes() + " bytes in " + l1.size() + " pages"
+                + ", admission rejections: " + l1.getRejections());
+    }
+
+    private void twoTierCache(String name, Chapter02 app, int[] requests) {
+        app.updateToken(JEDIS, "bench-token", "bench-user", "bench-item");
+        Function<String, String> callback = Chapter02Benchmark::render;
+        long start = System.currentTimeMillis();
+        for (int page : requests) {
+            app.cacheRequest(JEDIS, url(page), callback);
+        }
+        long end = System.currentTimeMillis();
+        System.out.println(name + ": " + ((end - start) * 1000.0 / requests.length) + " us/request");
+    }
+
+    /**
+     * 生成 Zipf 分布的页面序号
+     */
+    private static int[] zipf(int pages, int count, double s, Random random) {
+        double[] cdf = new double[pages];
+        double sum = 0;
+        for (int i = 0; i < pages; i++) {
+            sum += 1 / Math.pow(i + 1, s);
+            cdf[i] = sum;
+        }
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            result[i] = Math.min(index < 0 ? -index - 1 : index, pages - 1);
+        }
+        return result;
+    }
+
+    /**
+     * 商品访问次数本地聚合：ZIPF_PAGES 个商品按 Zipf 分布访问 ZIPF_READS 次，每 10000 次写入一次，
+     * 对比不同 topK 下写入 viewed: 的命令数、丢失的访问比例、单个商品的最大误差和前 100 名的召回率
+     */
+    public void viewCounter() {
+        int[] views = zipf(ZIPF_PAGES, ZIPF_READS, 1.0, new Random(42));
+        Map<String, Long> exact = new HashMap<>();
+        for (int item : views) {
+            exact.merge("item" + item, 1L, Long::sum);
+        }
+        System.out.println("ZINCRBY per view: " + views.length + " writes");
+        for (int topK : new int[]{10, 100, 1000, 4000}) {
+            viewCounter(topK, views, exact);
+        }
+    }
+
+    private void viewCounter(int topK, int[] views, Map<String, Long> exact) {
+        ViewCounter counter = new ViewCounter(topK);
+        Map<String, Long> flushed = new HashMap<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < views.length; i++) {
+            counter.record("item" + views[i]);
+            if ((i + 1) % 10000 == 0) {
+                counter.drain().forEach((item, delta) -> flushed.merge(item, delta, Long::sum));
+            }
+        }
+        counter.drain().forEach((item, delta) -> flushed.merge(item, delta, Long::sum));
+        long nanos = System.nanoTime() - start;
+
+        long written = 0;
+        for (long delta : flushed.values()) {
+            written += delta;
+        }
+        long maxError = 0;
+        for (Map.Entry<String, Long> entry : exact.entrySet()) {
+            maxError = Math.max(maxError, entry.getValue() - flushed.getOrDefault(entry.getKey(), 0L));
+        }
+        Set<String> exactTop = top(exact, 100);
+        Set<String> flushedTop = top(flushed, 100);
+        flushedTop.retainAll(exactTop);
+        System.out.println("topK " + topK + ": " + counter.getWrites() + " writes, "
+                + String.format("%.1f", (views.length - written) * 100.0 / views.length) + "% views dropped, "
+                + "max error per item " + maxError + ", top-100 recall " + flushedTop.size() + "%, "
+                + nanos / views.length + " ns/view");
+    }
+
+    private static Set<String> top(Map<String, Long> counts, int n) {
+        Set<String> top = new HashSet<>();
+        counts.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(n)
+                .forEach(entry -> top.add(entry.getKey()));
+        return top;
+    }
+
+    /**
+     * 登录令牌缓存：一个散列 / 分桶的小散列，写入 LOGINS 个令牌后的内存占用、checkToken 和批量删除耗时
+     */
+    public void loginIndex() {
+        loginIndex("Single login:", LoginIndex.SINGLE);
+        loginIndex("1000 buckets", new LoginIndex(1000, false));
+    }
+
+    private void loginIndex(String name, LoginIndex index) {
+        Chapter02 app = new Chapter02();
+        app.setLoginIndex(index);
+        Map<String, String> logins = new HashMap<>();
+        for (int i = 0; i < LOGINS; i++) {
+            logins.put(UUID.randomUUID().toString(), "bench-user" + i);
+        }
+        long before = usedMemory();
+        Pipeline pipe = JEDIS.pipelined();
+        index.setAll(pipe, logins);
+        pipe.sync();
+        long memory = usedMemory() - before;
+
+        List<String> tokens = new ArrayList<>(logins.keySet());
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            app.checkToken(JEDIS, tokens.get(i % tokens.size()));
+        }
+        long checkNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < tokens.size(); i += 100) {
+            pipe = JEDIS.pipelined();
+            index.removeAll(pipe, tokens.subList(i, Math.min(i + 100, tokens.size())));
+            pipe.sync();
+        }
+        long removeNanos = System.nanoTime() - start;
+        System.out.println(name + ": " + memory / LOGINS + " bytes/token, checkToken "
+                + checkNanos / 1000 / READS + " us, remove 100 tokens " + removeNanos / 1000 / (LOGINS / 100) + " us");
+    }
+
+    /**
+     * 数据行编码：fastjson / 二进制，编解码吞吐量和每行字节数
+     */
+    public void rowCodecs() {
+        rowCodec("JSON row", RowCodec.JSON_CODEC);
+        rowCodec("Binary row", RowCodec.BINARY_CODEC);
+    }
+
+    private void rowCodec(String name, RowCodec codec) {
+        Chapter02.Inventory[] rows = new Chapter02.Inventory[1000];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new Chapter02.Inventory("item" + i, "data to cache...", System.currentTimeMillis() / 1000);
+        }
+        long bytes = 0;
+        byte[][] encoded = new byte[rows.length][];
+        // 预热
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < rows.length; i++) {
+                encoded[i] = codec.encode(rows[i]);
+                codec.decode(encoded[i]);
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < CODEC_ROUNDS; round++) {
+            for (int i = 0; i < rows.length; i++) {
+                encoded[i] = codec.encode(rows[i]);
+            }
+        }
+        long encodeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int round = 0; round < CODEC_ROUNDS; round++) {
+            for (byte[] data : encoded) {
+                codec.decode(data);
+            }
+        }
+        long decodeNanos = System.nanoTime() - start;
+        for (byte[] data : encoded) {
+            bytes += data.length;
+        }
+        long count = (long) CODEC_ROUNDS * rows.length;
+        System.out.println(name + ": encode " + count * 1000000000L / encodeNanos + " rows/s, decode "
+                + count * 1000000000L / decodeNanos + " rows/s, " + bytes / rows.length + " bytes/row");
+    }
+
+    private static String url(int i) {
+        return "http://bench.com/?item=bench-item&page=" + i;
+    }
+
+    /**
+     * 模拟渲染页面，约 40KB
+     */
+    private static String render(String request) {
+        StringBuilder page = new StringBuilder("<html><body><h1>").append(request).append("</h1><ul>");
+        for (int i = 0; i < 500; i++) {
+            page.append("<li class=\"item\"><a href=\"/item/").append(i).append("\">item ").append(i)
+                    .append("</a><span class=\"price\">").append(i * 37 % 1000).append(".99</span></li>");
+        }
+        return page.append("</ul></body></html>").toString();
+    }
+
+    private static long usedMemory() {
+        for (String line : JEDIS.info("memory").split("\\r\\n")) {
+            if (line.startsWith("used_memory:")) {
+                return Long.parseLong(line.substring("used_memory:".length()));
+            }
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) {
+        Chapter02Benchmark benchmark = new Chapter02Benchmark();
+        benchmark.pageCache();
+        benchmark.requestKeys();
+        benchmark.twoTierCache();
+        benchmark.rowCodecs();
+        benchmark.viewCounter();
+        benchmark.loginIndex();
+    }
+}
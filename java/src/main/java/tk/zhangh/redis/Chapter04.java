@@ -1,82 +1,626 @@
 package tk.zhangh.redis;
 
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by ZhangHao on 2017/9/28.
  */
 public class Chapter04 {
     /*======================================= 商品交易 ====================================================================
-    1. 用户信息（users：ID）
+    1. 用户信息（users：ID），余额 funds 以分为单位的整数
     2. 用户包裹（inventory：ID）
-    3. 市场（market）
+    3. 市场（market），商品价格以分为单位
+    4. 锁（lock:NAME）
+    旧版本的余额和价格以元为单位，升级步骤：
+    1) 停止旧版本的所有交易；
+    2) 执行 migrateToMinorUnits(conn, 100, batch) 把 users:* 的 funds 和 market: 的价格乘以 100，
+       中断后可以重新执行，已迁移的不会重复换算，完成后写入 minor-units: 标记；
+    3) 启动新版本
     */
 
     /**
-     * 销售商品
+     * 锁的过期时间，持有者崩溃时锁最多保留这么久
      */
-    public boolean listItem(Jedis conn, String itemId, String sellerId, double price) {
+    @Setter
+    private long lockTimeoutMillis = 1000;
+
+    /**
+     * 获取锁的最长等待时间，超过后放弃本次交易
+     */
+    @Setter
+    private long lockAcquireMillis = 1000;
+
+    /**
+     * 锁分段数，大于 0 时按名称哈希映射到 lock:market:N，限制锁的数量；0 表示每个市场商品、每个买家一把锁
+     */
+    @Setter
+    private int lockStripes = 0;
+
+    /**
+     * listItem、purchaseItem 的乐观事务执行器，冲突统计见 OptimisticExecutor.getStats
+     */
+    @Getter
+    @Setter
+    private OptimisticExecutor executor = new OptimisticExecutor(1, 100, Integer.MAX_VALUE);
+
+    @Getter
+    private final LockStats lockStats = new LockStats();
+
+    /**
+     * 销售商品，价格单位为分
+     */
+    public boolean listItem(Jedis conn, String itemId, String sellerId, long price) {
+        return listItem(conn, itemId, sellerId, price, System.currentTimeMillis() + 5000);
+    }
+
+    /**
+     * 销售商品，冲突时按 executor 的退避策略重试直到 deadline
+     */
+    public boolean listItem(Jedis conn, String itemId, String sellerId, long price, long deadline) {
         String inventory = "inventory:" + sellerId;
         String item = itemId + '.' + sellerId;
-        long end = System.currentTimeMillis() + 5000;
 
-        while (System.currentTimeMillis() < end) {
-            conn.watch(inventory);  // 监视包裹
-            if (!conn.sismember(inventory, itemId)) {
+        return executor.execute(conn, "listItem", deadline, false, c -> {
+            c.watch(inventory);  // 监视包裹
+            if (!c.sismember(inventory, itemId)) {
                 // 指定商品不存在用户的包裹
-                conn.unwatch();
+                c.unwatch();
                 return false;
             }
             // 事务执行
-            Transaction trans = conn.multi();
+            Transaction trans = c.multi();
             trans.zadd("market:", price, item);
             trans.srem(inventory, itemId);
             List<Object> results = trans.exec();
-            if (results == null) {
-                continue;
-            }
-            return true;
-        }
-        return false;
+            return results == null ? null : true;
+        });
     }
 
     /**
      * 购买商品
      */
-    public boolean purchaseItem(Jedis conn, String buyerId, String itemId, String sellerId, double lprice) {
+    public boolean purchaseItem(Jedis conn, String buyerId, String itemId, String sellerId, long lprice) {
+        return purchaseItem(conn, buyerId, itemId, sellerId, lprice, System.currentTimeMillis() + 10000);
+    }
+
+    /**
+     * 购买商品，冲突时按 executor 的退避策略重试直到 deadline
+     */
+    public boolean purchaseItem(Jedis conn, String buyerId, String itemId, String sellerId, long lprice,
+                                long deadline) {
         String buyer = "users:" + buyerId;
         String seller = "users:" + sellerId;
         String item = itemId + "." + sellerId;
         String inventory = "inventory:" + buyerId;
-        long end = System.currentTimeMillis() + 10000;
 
-        while (System.currentTimeMillis() < end) {
-            conn.watch("market:", buyer);
-            double price = conn.zscore("market:", item);
-            double funds = Double.parseDouble(conn.hget(buyer, "funds"));
+        return executor.execute(conn, "purchaseItem", deadline, false, c -> {
+            c.watch("market:", buyer);
+            Double score = c.zscore("market:", item);
+            if (score == null) {
+                // 商品已售出或下架
+                c.unwatch();
+                return false;
+            }
+            long price = score.longValue();
+            String funds = c.hget(buyer, "funds");
             if (price != lprice || // 商品价钱变化
-                    price > funds) {  // 余额不足
-                conn.unwatch();
+                    funds == null || price > Long.parseLong(funds)) {  // 余额不足
+                c.unwatch();
                 return false;
             }
 
             // 执行事务
-            Transaction trans = conn.multi();
-            trans.hincrBy(seller, "funds", ((int) price));  // 卖家加钱
-            trans.hincrBy(buyer, "funds", ((int) -price));  // 买家扣钱
+            Transaction trans = c.multi();
+            trans.hincrBy(seller, "funds", price);  // 卖家加钱
+            trans.hincrBy(buyer, "funds", -price);  // 买家扣钱
             trans.sadd(inventory, itemId);  // 买家添加商品
             trans.zrem("market:", item);  // 市场移除商品
             List<Object> results = trans.exec();
-            if (results == null) {
-                continue;
+            return results == null ? null : true;
+        });
+    }
+
+    /**
+     * 销售商品，脚本版本
+     * 检查包裹和上架在服务端一次完成，不需要 WATCH 和重试
+     */
+    public boolean listItemScript(Jedis conn, String itemId, String sellerId, long price) {
+        Object result = LIST_ITEM.call(conn, Arrays.asList("inventory:" + sellerId, "market:"),
+                Arrays.asList(itemId, itemId + '.' + sellerId, String.valueOf(price)));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * 销售商品脚本
+     * KEYS: inventory:SELLER, market:  ARGV: 商品id, 市场商品, 价格
+     */
+    private static final LuaScript LIST_ITEM = new LuaScript(
+            "if redis.call('SREM', KEYS[1], ARGV[1]) == 0 then return 0 end " +
+            "redis.call('ZADD', KEYS[2], ARGV[3], ARGV[2]) " +
+            "return 1");
+
+    /**
+     * 购买商品，脚本版本
+     * 检查价格、余额以及转账、转移商品在服务端一次完成，其他商品的上架和交易不会导致重试
+     */
+    public boolean purchaseItemScript(Jedis conn, String buyerId, String itemId, String sellerId, long lprice) {
+        Object result = PURCHASE_ITEM.call(conn,
+                Arrays.asList("market:", "users:" + buyerId, "users:" + sellerId, "inventory:" + buyerId),
+                Arrays.asList(itemId + "." + sellerId, itemId, String.valueOf(lprice)));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * 购买商品脚本
+     * KEYS: market:, users:BUYER, users:SELLER, inventory:BUYER  ARGV: 市场商品, 商品id, 期望价格
+     * 金额为整数（分），用 string.format 避免大金额被格式化为科学计数法
+     */
+    private static final LuaScript PURCHASE_ITEM = new LuaScript(
+            "local price = tonumber(redis.call('ZSCORE', KEYS[1], ARGV[1])) " +
+            "if not price or price ~= tonumber(ARGV[3]) then return 0 end " +  // 已售出或价钱变化
+            "local funds = tonumber(redis.call('HGET', KEYS[2], 'funds')) " +
+            "if not funds or price > funds then return 0 end " +  // 余额不足
+            "redis.call('HINCRBY', KEYS[3], 'funds', ARGV[3]) " +
+            "redis.call('HINCRBY', KEYS[2], 'funds', string.format('%d', -price)) " +
+            "redis.call('SADD', KEYS[4], ARGV[2]) " +
+            "redis.call('ZREM', KEYS[1], ARGV[1]) " +
+            "return 1");
+
+    /**
+     * 批量结算交易
+     * 逐笔检查价格和买家余额（计入本批次之前交易的收支），转移商品；
+     * 全部检查完成后每个用户只执行一次 HINCRBY 写入净收支，频繁成交的卖家每批只写一次余额
+     *
+     * @return 每笔交易是否成功
+     */
+    public boolean[] settle(Jedis conn, List<Trade> trades) {
+        boolean[] settled = new boolean[trades.size()];
+        if (trades.isEmpty()) {
+            return settled;
+        }
+        List<String> keys = new ArrayList<>(trades.size() * 3 + 1);
+        List<String> args = new ArrayList<>(trades.size() * 3);
+        keys.add("market:");
+        for (Trade trade : trades) {
+            keys.add("users:" + trade.getBuyerId());
+            keys.add("users:" + trade.getSellerId());
+            keys.add("inventory:" + trade.getBuyerId());
+            args.add(trade.getItemId() + "." + trade.getSellerId());
+            args.add(trade.getItemId());
+            args.add(String.valueOf(trade.getPrice()));
+        }
+        @SuppressWarnings("unchecked")
+        List<Long> results = (List<Long>) SETTLE.call(conn, keys, args);
+        for (int i = 0; i < settled.length; i++) {
+            settled[i] = results.get(i) == 1;
+        }
+        return settled;
+    }
+
+    /**
+     * 批量结算脚本
+     * KEYS: market:, 每笔交易 users:BUYER, users:SELLER, inventory:BUYER
+     * ARGV: 每笔交易 市场商品, 商品id, 期望价格
+     */
+    private static final LuaScript SETTLE = new LuaScript(
+            "local base, delta, order, result = {}, {}, {}, {} " +
+            "local function funds(key) " +
+            "  if not base[key] then base[key] = tonumber(redis.call('HGET', key, 'funds')) or 0 end " +
+            "  return base[key] + (delta[key] or 0) " +
+            "end " +
+            "local function add(key, amount) " +
+            "  if not delta[key] then delta[key] = 0; order[#order + 1] = key end " +
+            "  delta[key] = delta[key] + amount " +
+            "end " +
+            "for i = 0, #ARGV / 3 - 1 do " +
+            "  local buyer, seller, inventory = KEYS[2 + i * 3], KEYS[3 + i * 3], KEYS[4 + i * 3] " +
+            "  local member, item, price = ARGV[1 + i * 3], ARGV[2 + i * 3], tonumber(ARGV[3 + i * 3]) " +
+            "  local ok = 0 " +
+            "  if tonumber(redis.call('ZSCORE', KEYS[1], member)) == price and funds(buyer) >= price then " +
+            "    add(buyer, -price) " +
+            "    add(seller, price) " +
+            "    redis.call('ZREM', KEYS[1], member) " +
+            "    redis.call('SADD', inventory, item) " +
+            "    ok = 1 " +
+            "  end " +
+            "  result[#result + 1] = ok " +
+            "end " +
+            "for _, key in ipairs(order) do " +
+            "  if delta[key] ~= 0 then redis.call('HINCRBY', key, 'funds', string.format('%d', delta[key])) end " +
+            "end " +
+            "return result");
+
+    /**
+     * 把余额（users:* 的 funds）和市场价格（market: 的分值）乘以 scale 换算为最小货币单位
+     * 每次扫描 batch 个 key 或商品，已迁移的记录在 migrate:minor-units: 中，中断后重新执行不会重复换算；
+     * 完成后删除进度并写入 minor-units: 标记，之后再执行直接返回。迁移期间不能有交易
+     *
+     * @return 本次换算的余额和价格数
+     */
+    public long migrateToMinorUnits(Jedis conn, long scale, int batch) {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("scale must be positive");
+        }
+        if (conn.exists(MINOR_UNITS_KEY)) {
+            return 0;
+        }
+        long migrated = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        ScanParams params = new ScanParams().match("users:*").count(batch);
+        do {
+            ScanResult<String> result = conn.scan(cursor, params);
+            cursor = result.getStringCursor();
+            migrated += migrateUnits(conn, scale, result.getResult(), Collections.emptyList());
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+
+        params = new ScanParams().count(batch);
+        do {
+            ScanResult<Tuple> result = conn.zscan("market:", cursor, params);
+            cursor = result.getStringCursor();
+            List<String> members = new ArrayList<>(result.getResult().size());
+            for (Tuple tuple : result.getResult()) {
+                members.add(tuple.getElement());
+            }
+            migrated += migrateUnits(conn, scale, Collections.emptyList(), members);
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+
+        conn.set(MINOR_UNITS_KEY, String.valueOf(scale));
+        conn.del(MIGRATE_UNITS_KEY);
+        return migrated;
+    }
+
+    private long migrateUnits(Jedis conn, long scale, List<String> users, List<String> members) {
+        if (users.isEmpty() && members.isEmpty()) {
+            return 0;
+        }
+        List<String> keys = new ArrayList<>(users.size() + 2);
+        keys.add(MIGRATE_UNITS_KEY);
+        keys.add("market:");
+        keys.addAll(users);
+        List<String> args = new ArrayList<>(members.size() + 1);
+        args.add(String.valueOf(scale));
+        args.addAll(members);
+        return (Long) MIGRATE_UNITS.call(conn, keys, args);
+    }
+
+    private static final String MINOR_UNITS_KEY = "minor-units:";
+    private static final String MIGRATE_UNITS_KEY = "migrate:minor-units:";
+
+    /**
+     * 换算脚本
+     * KEYS: migrate:minor-units:, market:, users:ID...  ARGV: 倍数, 市场商品...
+     * 只换算散列中的 funds，SADD 进度集合成功（未换算过）时才换算
+     */
+    private static final LuaScript MIGRATE_UNITS = new LuaScript(
+            "local scale, n = tonumber(ARGV[1]), 0 " +
+            "for i = 3, #KEYS do " +
+            "  if redis.call('TYPE', KEYS[i]).ok == 'hash' then " +
+            "    local funds = tonumber(redis.call('HGET', KEYS[i], 'funds')) " +
+            "    if funds and redis.call('SADD', KEYS[1], KEYS[i]) == 1 then " +
+            "      redis.call('HSET', KEYS[i], 'funds', string.format('%d', math.floor(funds * scale + 0.5))) " +
+            "      n = n + 1 " +
+            "    end " +
+            "  end " +
+            "end " +
+            "for i = 2, #ARGV do " +
+            "  local price = tonumber(redis.call('ZSCORE', KEYS[2], ARGV[i])) " +
+            "  if price and redis.call('SADD', KEYS[1], 'market:' .. ARGV[i]) == 1 then " +
+            "    redis.call('ZADD', KEYS[2], string.format('%d', math.floor(price * scale + 0.5)), ARGV[i]) " +
+            "    n = n + 1 " +
+            "  end " +
+            "end " +
+            "return n");
+
+    /**
+     * 交易，价格单位为分
+     */
+    @AllArgsConstructor
+    @Data
+    public static class Trade {
+        private String buyerId;
+        private String itemId;
+        private String sellerId;
+        private long price;
+    }
+
+    /**
+     * 批量结算线程
+     * 交易先进入本地队列，攒够 maxBatchSize 笔或距离批次第一笔交易超过 flushInterval 毫秒时通过一次 settle 结算；
+     * 使用传入的 Chapter04 结算
+     */
+    public static class SettlementThread extends Chapter02.DaemonThread {
+        private final Chapter04 app;
+        private final Jedis conn;
+        private final long flushInterval;
+        private final int maxBatchSize;
+        private final BlockingQueue<PendingTrade> queue;
+
+        public SettlementThread(Chapter04 app, Jedis conn, long flushInterval, int maxBatchSize) {
+            this.app = app;
+            this.conn = conn;
+            this.flushInterval = flushInterval;
+            this.maxBatchSize = maxBatchSize;
+            this.queue = new ArrayBlockingQueue<>(maxBatchSize * 16);  // 队列满时阻塞提交方
+            setDaemon(true);
+        }
+
+        /**
+         * 提交交易
+         *
+         * @return 结算完成后得到交易是否成功
+         */
+        public CompletableFuture<Boolean> purchase(Trade trade) throws InterruptedException {
+            PendingTrade pending = new PendingTrade(trade, new CompletableFuture<>());
+            queue.put(pending);
+            return pending.result;
+        }
+
+        @Override
+        public void run() {
+            List<PendingTrade> batch = new ArrayList<>(maxBatchSize);
+            while (!quit) {
+                try {
+                    PendingTrade first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    long deadline = System.currentTimeMillis() + flushInterval;
+                    while (batch.size() < maxBatchSize) {
+                        long wait = deadline - System.currentTimeMillis();
+                        PendingTrade pending = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                        if (pending == null) {
+                            break;
+                        }
+                        batch.add(pending);
+                        queue.drainTo(batch, maxBatchSize - batch.size());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    quit = true;
+                }
+                settle(batch);
+            }
+            // 退出前结算剩余交易
+            queue.drainTo(batch);
+            settle(batch);
+        }
+
+        private void settle(List<PendingTrade> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<Trade> trades = new ArrayList<>(batch.size());
+            for (PendingTrade pending : batch) {
+                trades.add(pending.trade);
+            }
+            try {
+                boolean[] settled = app.settle(conn, trades);
+                for (int i = 0; i < settled.length; i++) {
+                    batch.get(i).result.complete(settled[i]);
+                }
+            } catch (RuntimeException e) {
+                for (PendingTrade pending : batch) {
+                    pending.result.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private static class PendingTrade {
+        private final Trade trade;
+        private final CompletableFuture<Boolean> result;
+
+        private PendingTrade(Trade trade, CompletableFuture<Boolean> result) {
+            this.trade = trade;
+            this.result = result;
+        }
+    }
+
+    /**
+     * 销售商品，锁版本
+     * 只锁定该市场商品，只 WATCH 锁，不 WATCH 整个市场
+     */
+    public boolean listItemLocked(Jedis conn, String itemId, String sellerId, long price) {
+        String inventory = "inventory:" + sellerId;
+        String item = itemId + '.' + sellerId;
+        List<String> locks = lockNames(item);
+        List<String> tokens = acquireLocks(conn, locks);
+        if (tokens == null) {
+            return false;
+        }
+        try {
+            if (!watchLocks(conn, locks, tokens)) {
+                return false;
+            }
+            if (!conn.sismember(inventory, itemId)) {
+                conn.unwatch();
+                return false;
+            }
+            Transaction trans = conn.multi();
+            trans.zadd("market:", price, item);
+            trans.srem(inventory, itemId);
+            return commit(trans);
+        } finally {
+            releaseLocks(conn, locks, tokens);
+        }
+    }
+
+    /**
+     * 购买商品，锁版本
+     * 锁定该市场商品和买家，检查通过后用事务写入；只 WATCH 锁，不相关的交易不会导致冲突，
+     * 锁超时被他人获取时 EXEC 失败，放弃本次交易，见 LockStats.lost；
+     * 卖家只有 HINCRBY 加钱，不需要锁定。
+     * 与 WATCH 版本同时使用时 WATCH 版本不受锁保护，同一个市场只应使用一种方式
+     */
+    public boolean purchaseItemLocked(Jedis conn, String buyerId, String itemId, String sellerId, long lprice) {
+        String buyer = "users:" + buyerId;
+        String seller = "users:" + sellerId;
+        String item = itemId + "." + sellerId;
+        String inventory = "inventory:" + buyerId;
+        List<String> locks = lockNames(item, buyer);
+        List<String> tokens = acquireLocks(conn, locks);
+        if (tokens == null) {
+            return false;
+        }
+        try {
+            if (!watchLocks(conn, locks, tokens)) {
+                return false;
+            }
+            Double score = conn.zscore("market:", item);
+            String funds = conn.hget(buyer, "funds");
+            if (score == null || score.longValue() != lprice ||  // 已售出或价钱变化
+                    funds == null || lprice > Long.parseLong(funds)) {  // 余额不足
+                conn.unwatch();
+                return false;
             }
-            return true;
+            Transaction trans = conn.multi();
+            trans.hincrBy(seller, "funds", lprice);  // 卖家加钱
+            trans.hincrBy(buyer, "funds", -lprice);  // 买家扣钱
+            trans.sadd(inventory, itemId);  // 买家添加商品
+            trans.zrem("market:", item);  // 市场移除商品
+            return commit(trans);
+        } finally {
+            releaseLocks(conn, locks, tokens);
         }
-        return false;
+    }
+
+    /**
+     * WATCH 锁并确认仍持有所有锁
+     * 锁过期后被他人获取会修改锁的值，之后的 EXEC 失败，避免持有者超时后与新持有者同时写入
+     *
+     * @return 是否仍持有所有锁；否则已 UNWATCH
+     */
+    private boolean watchLocks(Jedis conn, List<String> locks, List<String> tokens) {
+        String[] names = locks.toArray(new String[locks.size()]);
+        conn.watch(names);
+        if (!tokens.equals(conn.mget(names))) {
+            conn.unwatch();
+            lockStats.lost.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 提交事务，锁在读取后被他人获取时 EXEC 返回 null，不写入
+     */
+    private boolean commit(Transaction trans) {
+        if (trans.exec() == null) {
+            lockStats.lost.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 锁名称，排序去重，按顺序获取避免死锁
+     */
+    private List<String> lockNames(String... names) {
+        TreeSet<String> locks = new TreeSet<>();
+        for (String name : names) {
+            locks.add(lockStripes > 0 ? "lock:market:" + (name.hashCode() & 0x7fffffff) % lockStripes : "lock:" + name);
+        }
+        return new ArrayList<>(locks);
+    }
+
+    /**
+     * 依次获取锁，任意一把超时则释放已获取的锁
+     *
+     * @return 各锁的持有者标识，获取失败时返回 null
+     */
+    private List<String> acquireLocks(Jedis conn, List<String> locks) {
+        List<String> tokens = new ArrayList<>(locks.size());
+        for (String lock : locks) {
+            String token = acquireLock(conn, lock);
+            if (token == null) {
+                releaseLocks(conn, locks.subList(0, tokens.size()), tokens);
+                return null;
+            }
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    private String acquireLock(Jedis conn, String lock) {
+        String token = UUID.randomUUID().toString();
+        long start = System.currentTimeMillis();
+        long end = start + lockAcquireMillis;
+        boolean contended = false;
+        while (true) {
+            if ("OK".equals(conn.set(lock, token, "NX", "PX", lockTimeoutMillis))) {
+                lockStats.acquired.incrementAndGet();
+                if (contended) {
+                    long wait = System.currentTimeMillis() - start;
+                    lockStats.contended.incrementAndGet();
+                    lockStats.waitMillis.addAndGet(wait);
+                    lockStats.maxWaitMillis.accumulateAndGet(wait, Math::max);
+                }
+                return token;
+            }
+            if (System.currentTimeMillis() >= end) {
+                lockStats.failures.incrementAndGet();
+                lockStats.waitMillis.addAndGet(System.currentTimeMillis() - start);
+                return null;
+            }
+            contended = true;
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lockStats.failures.incrementAndGet();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 释放锁，只删除自己持有的锁；锁已过期被他人获取时记入 expired
+     */
+    private void releaseLocks(Jedis conn, List<String> locks, List<String> tokens) {
+        for (int i = tokens.size() - 1; i >= 0; i--) {
+            Object released = LuaScript.RELEASE_LEASE.call(conn,
+                    Collections.singletonList(locks.get(i)), Collections.singletonList(tokens.get(i)));
+            if (!Long.valueOf(1).equals(released)) {
+                lockStats.expired.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 锁统计
+     */
+    @Getter
+    public static class LockStats {
+        private final AtomicLong acquired = new AtomicLong();  // 获取成功次数
+        private final AtomicLong contended = new AtomicLong();  // 需要等待才获取成功的次数
+        private final AtomicLong failures = new AtomicLong();  // 等待超时的次数
+        private final AtomicLong waitMillis = new AtomicLong();  // 等待总耗时，包括超时
+        private final AtomicLong maxWaitMillis = new AtomicLong();  // 获取成功的最长等待
+        private final AtomicLong expired = new AtomicLong();  // 释放时锁已过期的次数
+        private final AtomicLong lost = new AtomicLong();  // 写入前锁已过期或被他人获取而放弃的次数
     }
 
 
@@ -0,0 +1,168 @@
+package tk.zhangh.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static tk.zhangh.redis.Config.HOST;
+import static tk.zhangh.redis.Config.PORT;
+
+/**
+ * Chapter04 不同实现的性能对比
+ * Created by ZhangHao on 2017/10/20.
+ */
+public class Chapter04Benchmark {
+
+    private static final int ITEMS = 2000;
+    private static final int SELLERS = 100;
+    private static final int[] BUYERS = {1, 8, 64, 256};
+    private static final Chapter04 APP = new Chapter04();
+
+    private final JedisPool pool;
+
+    public Chapter04Benchmark() {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(BUYERS[BUYERS.length - 1] + 1);
+        pool = new JedisPool(config, HOST, PORT);
+    }
+
+    /**
+     * 并发购买：ITEMS 件商品，不同买家数并发购买不同的商品，WATCH 版本 / 脚本版本 / 锁版本每秒成功购买数，
+     * WATCH 版本输出每次购买的尝试次数和冲突次数分布
+     */
+    public void purchase() throws InterruptedException {
+        for (int buyers : BUYERS) {
+            Chapter04 watch = new Chapter04();
+            purchase("WATCH purchaseItem", buyers, watch::purchaseItem);
+            System.out.println("  " + watch.getExecutor().getStats("purchaseItem"));
+            purchase("Script purchaseItem", buyers, APP::purchaseItemScript);
+            Chapter04 locked = new Chapter04();
+            purchase("Locked purchaseItem", buyers, locked::purchaseItemLocked);
+            Chapter04.LockStats stats = locked.getLockStats();
+            System.out.println("  lock acquired: " + stats.getAcquired() + ", contended: " + stats.getContended()
+                    + ", failures: " + stats.getFailures() + ", wait: " + stats.getWaitMillis()
+                    + " ms, max wait: " + stats.getMaxWaitMillis() + " ms");
+        }
+    }
+
+    private interface Purchase {
+        boolean purchase(Jedis conn, String buyerId, String itemId, String sellerId, long lprice);
+    }
+
+    private void purchase(String name, int buyers, Purchase purchase) throws InterruptedException {
+        setUp(buyers);
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong purchased = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int b = 0; b < buyers; b++) {
+            String buyer = "bench-buyer" + b;
+            threads.add(new Thread(() -> {
+                try (Jedis conn = pool.getResource()) {
+                    for (int i = next.getAndIncrement(); i < ITEMS; i = next.getAndIncrement()) {
+                        String item = "bench-item" + i;
+                        String seller = "bench-seller" + i % SELLERS;
+                        if (purchase.purchase(conn, buyer, item, seller, 1)) {
+                            purchased.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        long start = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long end = System.currentTimeMillis();
+        System.out.println(name + ", " + buyers + " buyers: " + purchased.get() * 1000 / Math.max(1, end - start)
+                + " purchases/s, " + purchased.get() + "/" + ITEMS + " purchased");
+        tearDown(buyers);
+    }
+
+    /**
+     * 结算：8 个买家依次购买 ITEMS 件商品，逐笔脚本购买 / 每 100 笔批量结算，每秒成交数
+     */
+    public void settlement() {
+        int buyers = 8;
+        setUp(buyers);
+        long start = System.currentTimeMillis();
+        long purchased = 0;
+        try (Jedis conn = pool.getResource()) {
+            for (int i = 0; i < ITEMS; i++) {
+                if (APP.purchaseItemScript(conn, "bench-buyer" + i % buyers, "bench-item" + i,
+                        "bench-seller" + i % SELLERS, 1)) {
+                    purchased++;
+                }
+            }
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("Per-trade settlement: " + purchased * 1000 / Math.max(1, end - start) + " trades/s");
+        tearDown(buyers);
+
+        setUp(buyers);
+        start = System.currentTimeMillis();
+        purchased = 0;
+        try (Jedis conn = pool.getResource()) {
+            List<Chapter04.Trade> batch = new ArrayList<>();
+            for (int i = 0; i < ITEMS; i++) {
+                batch.add(new Chapter04.Trade("bench-buyer" + i % buyers, "bench-item" + i,
+                        "bench-seller" + i % SELLERS, 1));
+                if (batch.size() == 100 || i == ITEMS - 1) {
+                    for (boolean settled : APP.settle(conn, batch)) {
+                        purchased += settled ? 1 : 0;
+                    }
+                    batch.clear();
+                }
+            }
+        }
+        end = System.currentTimeMillis();
+        System.out.println("Batched settlement: " + purchased * 1000 / Math.max(1, end - start) + " trades/s");
+        tearDown(buyers);
+    }
+
+    /**
+     * 上架 ITEMS 件价格为 1 的商品，每个买家的余额足够买下全部商品
+     */
+    private void setUp(int buyers) {
+        try (Jedis conn = pool.getResource()) {
+            Pipeline pipe = conn.pipelined();
+            for (int i = 0; i < ITEMS; i++) {
+                pipe.zadd("market:", 1, "bench-item" + i + ".bench-seller" + i % SELLERS);
+            }
+            for (int b = 0; b < buyers; b++) {
+                pipe.hset("users:bench-buyer" + b, "funds", String.valueOf(ITEMS));
+            }
+            pipe.sync();
+        }
+    }
+
+    private void tearDown(int buyers) {
+        try (Jedis conn = pool.getResource()) {
+            Pipeline pipe = conn.pipelined();
+            for (int i = 0; i < ITEMS; i++) {
+                pipe.zrem("market:", "bench-item" + i + ".bench-seller" + i % SELLERS);
+            }
+            for (int s = 0; s < SELLERS; s++) {
+                pipe.del("users:bench-seller" + s);
+            }
+            for (int b = 0; b < buyers; b++) {
+                pipe.del("users:bench-buyer" + b, "inventory:bench-buyer" + b);
+            }
+            pipe.sync();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Chapter04Benchmark benchmark = new Chapter04Benchmark();
+        benchmark.purchase();
+        benchmark.settlement();
+    }
+}
@@ -0,0 +1,102 @@
+package tk.zhangh.redis;
+
+import redis.clients.jedis.Jedis;
+
+import java.util.Set;
+
+/**
+ * 热门商品本地过滤器
+ * 定期读取商品访问统计缓存（viewed:）排名前 threshold 的商品，把商品id的64位哈希放入开放寻址的 long 数组，
+ * 判断是否热门商品时不需要访问 Redis，也不需要分配对象。
+ * 刷新时整体替换数组，读取方不加锁；哈希冲突会把极少数非热门商品当作热门商品
+ * Created by ZhangHao on 2017/10/12.
+ */
+public class HotItemFilter {
+    private final int threshold;
+    private volatile long[] table = new long[1];
+
+    public HotItemFilter(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * 重新读取热门商品
+     */
+    public void refresh(Jedis conn) {
+        Set<String> items = conn.zrange("viewed:", 0, threshold - 1);  // 访问越多分数越小
+        // 装载因子不超过 0.5
+        int capacity = Integer.highestOneBit(Math.max(items.size(), 1) * 2) * 2;
+        long[] table = new long[capacity];
+        for (String item : items) {
+            long hash = hash(item, 0, item.length());
+            int index = (int) hash & (capacity - 1);
+            while (table[index] != 0 && table[index] != hash) {
+                index = (index + 1) & (capacity - 1);
+            }
+            table[index] = hash;
+        }
+        this.table = table;
+    }
+
+    public boolean contains(String item) {
+        return contains(item, 0, item.length());
+    }
+
+    /**
+     * 判断 s[from, to) 是否热门商品
+     */
+    public boolean contains(CharSequence s, int from, int to) {
+        long[] table = this.table;
+        long hash = hash(s, from, to);
+        int index = (int) hash & (table.length - 1);
+        while (table[index] != 0) {
+            if (table[index] == hash) {
+                return true;
+            }
+            index = (index + 1) & (table.length - 1);
+        }
+        return false;
+    }
+
+    /**
+     * FNV-1a 64位哈希，0 用作空槽
+     */
+    private static long hash(CharSequence s, int from, int to) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 32;  // 让低位也受高位影响
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * 定时刷新热门商品
+     */
+    public static class RefreshThread extends Chapter02.DaemonThread {
+        private final Jedis conn;
+        private final HotItemFilter filter;
+        private final long interval;
+
+        public RefreshThread(Jedis conn, HotItemFilter filter, long interval) {
+            this.conn = conn;
+            this.filter = filter;
+            this.interval = interval;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!quit) {
+                filter.refresh(conn);
+                try {
+                    sleep(interval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package tk.zhangh.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 登录令牌缓存（login:）的存储方式
+ * buckets 为 0 时所有令牌存放在一个散列 login: 中；
+ * 否则按令牌哈希分散到 login:0 ~ login:(buckets-1) 共 buckets 个小散列，
+ * 每个散列的令牌数不超过 hash-max-ziplist-entries（默认 128）时 Redis 使用压缩编码，内存占用更少，
+ * 大散列也不会集中在一个 key 上。buckets 取预计令牌数 / 100 左右即可。
+ * <p>
+ * legacyFallback 为 true 时在分桶中找不到的令牌再到 login: 中查找，用于 migrate 完成之前
+ * Created by ZhangHao on 2017/10/19.
+ */
+public class LoginIndex {
+    public static final LoginIndex SINGLE = new LoginIndex(0, false);
+
+    private static final String LEGACY_KEY = "login:";
+
+    private final int buckets;
+    private volatile boolean legacyFallback;
+
+    public LoginIndex(int buckets, boolean legacyFallback) {
+        if (buckets < 0) {
+            throw new IllegalArgumentException("buckets must not be negative");
+        }
+        this.buckets = buckets;
+        this.legacyFallback = buckets > 0 && legacyFallback;
+    }
+
+    /**
+     * 令牌所在的散列
+     */
+    public String key(String token) {
+        if (buckets == 0) {
+            return LEGACY_KEY;
+        }
+        return LEGACY_KEY + ((token.hashCode() & 0x7fffffff) % buckets);
+    }
+
+    /**
+     * 根据token查找用户
+     */
+    public String get(Jedis conn, String token) {
+        String user = conn.hget(key(token), token);
+        if (user == null && legacyFallback) {
+            user = conn.hget(LEGACY_KEY, token);
+        }
+        return user;
+    }
+
+    public void set(Jedis conn, String token, String user) {
+        conn.hset(key(token), token, user);
+    }
+
+    /**
+     * 按散列分组后批量写入
+     */
+    public void setAll(Pipeline pipe, Map<String, String> logins) {
+        if (buckets == 0) {
+            pipe.hmset(LEGACY_KEY, logins);
+            return;
+        }
+        Map<String, Map<String, String>> groups = new HashMap<>();
+        for (Map.Entry<String, String> entry : logins.entrySet()) {
+            groups.computeIfAbsent(key(entry.getKey()), k -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+            pipe.hmset(group.getKey(), group.getValue());
+        }
+    }
+
+    /**
+     * 按散列分组后批量删除
+     */
+    public void removeAll(Pipeline pipe, Collection<String> tokens) {
+        if (buckets == 0 || legacyFallback) {
+            pipe.hdel(LEGACY_KEY, tokens.toArray(new String[tokens.size()]));
+            if (buckets == 0) {
+                return;
+            }
+        }
+        Map<String, List<String>> groups = new HashMap<>();
+        for (String token : tokens) {
+            groups.computeIfAbsent(key(token), k -> new ArrayList<>()).add(token);
+        }
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            pipe.hdel(group.getKey(), group.getValue().toArray(new String[group.getValue().size()]));
+        }
+    }
+
+    /**
+     * 令牌数
+     */
+    public long size(Jedis conn) {
+        if (buckets == 0) {
+            return conn.hlen(LEGACY_KEY);
+        }
+        Pipeline pipe = conn.pipelined();
+        if (legacyFallback) {
+            pipe.hlen(LEGACY_KEY);
+        }
+        for (int i = 0; i < buckets; i++) {
+            pipe.hlen(LEGACY_KEY + i);
+        }
+        long size = 0;
+        for (Object count : pipe.syncAndReturnAll()) {
+            size += (Long) count;
+        }
+        return size;
+    }
+
+    /**
+     * 把 login: 中的令牌迁移到分桶中，每次读取 batch 个，写入后从 login: 删除。
+     * 分桶中已有的令牌比 login: 中的新，不覆盖。完成后关闭 legacyFallback
+     *
+     * @return 迁移的令牌数
+     */
+    public long migrate(Jedis conn, int batch) {
+        if (buckets == 0) {
+            return 0;
+        }
+        long migrated = 0;
+        ScanParams params = new ScanParams().count(batch);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<Map.Entry<String, String>> result = conn.hscan(LEGACY_KEY, cursor, params);
+            cursor = result.getStringCursor();
+            if (result.getResult().isEmpty()) {
+                continue;
+            }
+            Pipeline pipe = conn.pipelined();
+            String[] tokens = new String[result.getResult().size()];
+            int i = 0;
+            for (Map.Entry<String, String> entry : result.getResult()) {
+                pipe.hsetnx(key(entry.getKey()), entry.getKey(), entry.getValue());
+                tokens[i++] = entry.getKey();
+            }
+            pipe.hdel(LEGACY_KEY, tokens);
+            pipe.sync();
+            migrated += tokens.length;
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        if (!conn.exists(LEGACY_KEY)) {
+            legacyFallback = false;
+        }
+        return migrated;
+    }
+}
@@ -0,0 +1,98 @@
+package tk.zhangh.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lua 脚本
+ * 首次调用时 SCRIPT LOAD 并缓存 SHA1，之后通过 EVALSHA 调用；
+ * 服务端脚本缓存被清空（NOSCRIPT）时重新加载一次再调用。
+ * 流水线中先 load 再 call(Pipeline)，sync 后通过 get 读取结果
+ */
+public class LuaScript {
+
+    /**
+     * 释放租约脚本，值与持有者标识相同时才删除
+     * KEYS[1]: 租约，ARGV[1]: 持有者标识
+     */
+    public static final LuaScript RELEASE_LEASE = new LuaScript(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end " +
+            "return 0");
+
+    private final String script;
+    private volatile String sha;
+
+    public LuaScript(String script) {
+        this.script = script;
+    }
+
+    /**
+     * 执行脚本
+     */
+    public Object call(Jedis conn, List<String> keys, List<String> args) {
+        load(conn);
+        try {
+            return conn.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            // 服务端重启或执行了 SCRIPT FLUSH
+            sha = conn.scriptLoad(script);
+            return conn.evalsha(sha, keys, args);
+        }
+    }
+
+    /**
+     * 加载脚本，在流水线开始前调用
+     */
+    public void load(Jedis conn) {
+        if (sha == null) {
+            sha = conn.scriptLoad(script);
+        }
+    }
+
+    /**
+     * 在流水线中通过 EVALSHA 执行脚本，需要先 load
+     * 使用 byte[] 版本，String 版本会把整数结果当作字符串解析
+     */
+    public Response<Object> call(Pipeline pipe, List<String> keys, List<String> args) {
+        if (sha == null) {
+            throw new IllegalStateException("Script not loaded");
+        }
+        return pipe.evalsha(SafeEncoder.encode(sha), encode(keys), encode(args));
+    }
+
+    /**
+     * 读取流水线中的执行结果，脚本缓存在流水线执行前被清空时重新加载并直接执行
+     */
+    public Object get(Jedis conn, Response<Object> response, List<String> keys, List<String> args) {
+        try {
+            return response.get();
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            sha = conn.scriptLoad(script);
+            return conn.evalsha(sha, keys, args);
+        }
+    }
+
+    private static boolean isNoScript(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT");
+    }
+
+    private static List<byte[]> encode(List<String> values) {
+        List<byte[]> encoded = new ArrayList<byte[]>(values.size());
+        for (String value : values) {
+            encoded.add(SafeEncoder.encode(value));
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,136 @@
+package tk.zhangh.redis;
+
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * WATCH/MULTI/EXEC 乐观事务执行器
+ * 事务冲突（EXEC 返回 null）后按指数退避加随机抖动等待再重试：第 n 次冲突后等待 [0, min(maxDelay, baseDelay * 2^(n-1))] 毫秒，
+ * 避免冲突最严重时所有客户端同时重试。达到最大尝试次数或截止时间时放弃，等待不会超过截止时间。
+ * 按操作名称统计每次调用的尝试次数和冲突次数分布
+ * Created by ZhangHao on 2017/10/20.
+ */
+public class OptimisticExecutor {
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    public OptimisticExecutor(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis || maxAttempts <= 0) {
+            throw new IllegalArgumentException("Invalid backoff: " + baseDelayMillis + ", " + maxDelayMillis + ", " + maxAttempts);
+        }
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * 一次尝试：WATCH、读取、检查后执行事务
+     */
+    public interface Attempt<T> {
+        /**
+         * @return 结果；事务冲突时返回 null
+         */
+        T run(Jedis conn);
+    }
+
+    /**
+     * 执行乐观事务
+     *
+     * @param operation 操作名称，用于统计
+     * @param deadline  截止时间（毫秒时间戳）
+     * @param giveUp    放弃时的返回值
+     */
+    public <T> T execute(Jedis conn, String operation, long deadline, T giveUp, Attempt<T> attempt) {
+        Stats stats = getStats(operation);
+        int attempts = 0;
+        int conflicts = 0;
+        try {
+            while (attempts < maxAttempts && System.currentTimeMillis() < deadline) {
+                attempts++;
+                T result = attempt.run(conn);
+                if (result != null) {
+                    stats.successes.incrementAndGet();
+                    return result;
+                }
+                conflicts++;
+                if (attempts < maxAttempts && !backoff(stats, conflicts, deadline)) {
+                    break;
+                }
+            }
+            stats.giveUps.incrementAndGet();
+            return giveUp;
+        } finally {
+            stats.calls.incrementAndGet();
+            stats.attempts.incrementAndGet(Stats.bucket(attempts));
+            stats.conflicts.incrementAndGet(Stats.bucket(conflicts));
+        }
+    }
+
+    /**
+     * 冲突后等待
+     *
+     * @return 是否继续重试
+     */
+    private boolean backoff(Stats stats, int conflicts, long deadline) {
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(conflicts - 1, 30));
+        delay = ThreadLocalRandom.current().nextLong(delay + 1);
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return false;
+        }
+        delay = Math.min(delay, remaining);
+        if (delay == 0) {
+            return true;
+        }
+        stats.backoffMillis.addAndGet(delay);
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 操作的统计，没有调用过时返回空统计
+     */
+    public Stats getStats(String operation) {
+        return stats.computeIfAbsent(operation, k -> new Stats());
+    }
+
+    /**
+     * 单个操作的统计
+     * attempts、conflicts 为每次调用的尝试次数、冲突次数直方图，
+     * 下标 0 对应 0 次，下标 i 对应 [2^(i-1), 2^i) 次，最后一个下标包括更多的次数
+     */
+    @Getter
+    public static class Stats {
+        private static final int BUCKETS = 12;
+
+        private final AtomicLong calls = new AtomicLong();  // 调用次数
+        private final AtomicLong successes = new AtomicLong();  // 事务执行成功或检查不通过而返回的次数
+        private final AtomicLong giveUps = new AtomicLong();  // 达到最大尝试次数或截止时间而放弃的次数
+        private final AtomicLong backoffMillis = new AtomicLong();  // 退避等待总耗时
+        private final AtomicLongArray attempts = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray conflicts = new AtomicLongArray(BUCKETS);
+
+        static int bucket(long value) {
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + calls + ", successes=" + successes + ", giveUps=" + giveUps
+                    + ", backoffMillis=" + backoffMillis + ", attempts=" + attempts + ", conflicts=" + conflicts;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package tk.zhangh.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 页面缓存编码
+ * 格式：0x00, 版本, 压缩方式, 内容；超过 threshold 字节的页面使用 Deflate 压缩，否则不压缩
+ * 旧的页面缓存是文本，首字节不会是 0x00，读取时按文本处理，新旧数据可以共存；
+ * 解码不依赖编码参数，关闭编码后仍用 decode 读取，已压缩的页面照常解码，可以安全回退
+ * Created by ZhangHao on 2017/10/13.
+ */
+public class PageCodec {
+    private static final byte MAGIC = 0;
+    private static final byte VERSION = 1;
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    private static final int HEADER = 3;
+
+    private final int threshold;
+    private final int level;
+
+    public PageCodec(int threshold) {
+        this(threshold, Deflater.BEST_SPEED);
+    }
+
+    public PageCodec(int threshold, int level) {
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    public byte[] encode(String page) {
+        byte[] raw = page.getBytes(StandardCharsets.UTF_8);
+        if (raw.length >= threshold) {
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + HEADER);
+                out.write(MAGIC);
+                out.write(VERSION);
+                out.write(DEFLATE);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                if (out.size() < raw.length + HEADER) {
+                    return out.toByteArray();
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        // 不压缩
+        byte[] data = new byte[raw.length + HEADER];
+        data[0] = MAGIC;
+        data[1] = VERSION;
+        data[2] = RAW;
+        System.arraycopy(raw, 0, data, HEADER, raw.length);
+        return data;
+    }
+
+    public static String decode(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        if (data.length < HEADER || data[0] != MAGIC) {
+            // 旧格式，文本
+            return new String(data, StandardCharsets.UTF_8);
+        }
+        if (data[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported page version: " + data[1]);
+        }
+        if (data[2] == RAW) {
+            return new String(data, HEADER, data.length - HEADER, StandardCharsets.UTF_8);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER, data.length - HEADER);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated page");
+                }
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupted page", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
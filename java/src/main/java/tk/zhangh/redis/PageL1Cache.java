@@ -0,0 +1,179 @@
+package tk.zhangh.redis;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 页面缓存的本地一级缓存
+ * 按页面占用的字节数限制容量，按最近最少使用淘汰；
+ * 写入时使用 TinyLFU 准入：用 Count-Min Sketch 记录近期访问频率，新页面比将被淘汰的页面访问更频繁时才写入，
+ * 只访问一次的页面不会挤掉热门页面。每记录 10 倍宽度次访问后频率减半，使旧的热点逐渐淡出
+ * Created by ZhangHao on 2017/10/17.
+ */
+public class PageL1Cache {
+    private static final int ENTRY_OVERHEAD = 64;  // 每个页面的估算额外开销
+    private static final int DEPTH = 4;
+    private static final int MAX_FREQUENCY = 15;
+
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final int[][] sketch;
+    private final int mask;
+    private int additions;
+
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+    @Getter
+    private final AtomicLong rejections = new AtomicLong();  // 未通过准入的页面数
+
+    public PageL1Cache(long maxBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        // 按平均 4KB 一个页面估算容量，宽度取 2 的幂
+        int width = Integer.highestOneBit((int) Math.max(1024, Math.min(1 << 20, maxBytes / 4096)) * 2);
+        this.sketch = new int[DEPTH][width];
+        this.mask = width - 1;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public synchronized String get(String key) {
+        record(key);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expireAt <= System.currentTimeMillis()) {
+            remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.content;
+    }
+
+    public synchronized void put(String key, String content) {
+        long weight = weight(content);
+        if (weight > maxBytes) {
+            rejections.incrementAndGet();
+            return;
+        }
+        remove(key);
+
+        // 按最近最少使用顺序选出要淘汰的页面，逐个比较频率：任何一个未过期的页面频率不低于候选页面时放弃写入，
+        // 不淘汰任何页面；否则淘汰选出的页面
+        long now = System.currentTimeMillis();
+        if (bytes + weight > maxBytes) {
+            int candidate = frequency(key);
+            List<String> victims = new ArrayList<>();
+            long freed = 0;
+            for (Map.Entry<String, Entry> victim : entries.entrySet()) {
+                if (bytes - freed + weight <= maxBytes) {
+                    break;
+                }
+                if (victim.getValue().expireAt > now && candidate <= frequency(victim.getKey())) {
+                    rejections.incrementAndGet();
+                    return;
+                }
+                victims.add(victim.getKey());
+                freed += weight(victim.getValue().content);
+            }
+            for (String victim : victims) {
+                remove(victim);
+            }
+        }
+        entries.put(key, new Entry(content, now + ttlMillis));
+        bytes += weight;
+    }
+
+    public synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    /**
+     * 已使用的字节数
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= weight(entry.content);
+        }
+    }
+
+    private static long weight(String content) {
+        return content.length() * 2L + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * 记录一次访问
+     */
+    private void record(String key) {
+        int hash = spread(key.hashCode());
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if (sketch[i][index] < MAX_FREQUENCY) {
+                sketch[i][index]++;
+            }
+        }
+        if (++additions >= sketch[0].length * 10) {
+            // 衰减
+            for (int[] row : sketch) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+
+    private int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, sketch[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + row * 0x9e3779b9L) * 0xc2b2ae3d27d4eb4fL;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    private static class Entry {
+        private final String content;
+        private final long expireAt;
+
+        private Entry(String content, long expireAt) {
+            this.content = content;
+            this.expireAt = expireAt;
+        }
+    }
+}
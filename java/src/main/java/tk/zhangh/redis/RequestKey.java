@@ -0,0 +1,178 @@
+package tk.zhangh.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 页面缓存的请求key
+ * 规范化请求后计算128位哈希：协议和主机名转小写，去掉 #fragment，去掉可忽略的查询参数，
+ * 查询参数按名称、值排序，%xx 转义统一为大写。
+ * 直接在原始请求上按下标扫描、排序、计算哈希，不生成中间字符串
+ * Created by ZhangHao on 2017/10/16.
+ */
+public class RequestKey {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final List<String> ignoredNames = new ArrayList<>();
+    private final List<String> ignoredPrefixes = new ArrayList<>();
+
+    /**
+     * @param ignored 忽略的参数名，以 * 结尾表示前缀，如 utm_*
+     */
+    public RequestKey(String... ignored) {
+        for (String name : ignored) {
+            if (name.endsWith("*")) {
+                ignoredPrefixes.add(name.substring(0, name.length() - 1));
+            } else {
+                ignoredNames.add(name);
+            }
+        }
+    }
+
+    /**
+     * 计算请求的哈希，32位十六进制字符串
+     */
+    public String hash(String request) {
+        int end = request.indexOf('#');
+        end = end < 0 ? request.length() : end;
+        int query = request.indexOf('?');
+        query = query < 0 || query > end ? end : query;
+
+        Hash128 hash = new Hash128();
+        // 协议和主机名不区分大小写
+        int scheme = request.indexOf("://");
+        int authorityEnd = 0;
+        if (scheme >= 0 && scheme < query) {
+            authorityEnd = request.indexOf('/', scheme + 3);
+            authorityEnd = authorityEnd < 0 || authorityEnd > query ? query : authorityEnd;
+            for (int i = 0; i < authorityEnd; i++) {
+                hash.add(Character.toLowerCase(request.charAt(i)));
+            }
+        }
+        if (authorityEnd == query) {
+            hash.add('/');  // http://a.com 与 http://a.com/ 相同
+        }
+        hash.add(request, authorityEnd, query);
+
+        // 查询参数，每个参数记录 名称起点、名称终点、参数终点
+        int count = 0;
+        for (int i = query; i < end; i++) {
+            if (request.charAt(i) == '&' || request.charAt(i) == '?') {
+                count++;
+            }
+        }
+        int[] params = new int[count * 3];
+        count = 0;
+        for (int from = query + 1; from < end; ) {
+            int to = request.indexOf('&', from);
+            to = to < 0 || to > end ? end : to;
+            int eq = request.indexOf('=', from);
+            int nameTo = eq < 0 || eq > to ? to : eq;
+            if (nameTo > from && !isIgnored(request, from, nameTo)) {
+                // 插入排序，参数一般很少
+                int j = count;
+                while (j > 0 && compare(request, params, j - 1, from, nameTo, to) > 0) {
+                    params[j * 3] = params[(j - 1) * 3];
+                    params[j * 3 + 1] = params[(j - 1) * 3 + 1];
+                    params[j * 3 + 2] = params[(j - 1) * 3 + 2];
+                    j--;
+                }
+                params[j * 3] = from;
+                params[j * 3 + 1] = nameTo;
+                params[j * 3 + 2] = to;
+                count++;
+            }
+            from = to + 1;
+        }
+        for (int i = 0; i < count; i++) {
+            hash.add(i == 0 ? '?' : '&');
+            hash.add(request, params[i * 3], params[i * 3 + 2]);
+        }
+        return hash.toHex();
+    }
+
+    private boolean isIgnored(String s, int from, int to) {
+        for (String name : ignoredNames) {
+            if (to - from == name.length() && s.startsWith(name, from)) {
+                return true;
+            }
+        }
+        for (String prefix : ignoredPrefixes) {
+            if (to - from >= prefix.length() && s.startsWith(prefix, from)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 比较第 index 个参数与 [from, to) 的参数，先比较名称再比较值
+     */
+    private static int compare(String s, int[] params, int index, int from, int nameTo, int to) {
+        int result = compare(s, params[index * 3], params[index * 3 + 1], from, nameTo);
+        return result != 0 ? result : compare(s, params[index * 3 + 1], params[index * 3 + 2], nameTo, to);
+    }
+
+    private static int compare(String s, int aFrom, int aTo, int bFrom, int bTo) {
+        int length = Math.min(aTo - aFrom, bTo - bFrom);
+        for (int i = 0; i < length; i++) {
+            int diff = s.charAt(aFrom + i) - s.charAt(bFrom + i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return (aTo - aFrom) - (bTo - bFrom);
+    }
+
+    /**
+     * 两路64位哈希：FNV-1a 和乘法-循环移位，最后分别做 MurmurHash3 的 fmix64
+     */
+    private static final class Hash128 {
+        private long h1 = 0xcbf29ce484222325L;
+        private long h2 = 0x9e3779b97f4a7c15L;
+        private long length;
+
+        void add(char c) {
+            h1 = (h1 ^ c) * 0x100000001b3L;
+            h2 = Long.rotateLeft(h2 + c * 0xc2b2ae3d27d4eb4fL, 31) * 0x87c37b91114253d5L;
+            length++;
+        }
+
+        /**
+         * 添加 s[from, to)，%xx 转义统一为大写
+         */
+        void add(String s, int from, int to) {
+            int upper = 0;
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (upper > 0) {
+                    c = Character.toUpperCase(c);
+                    upper--;
+                } else if (c == '%') {
+                    upper = 2;
+                }
+                add(c);
+            }
+        }
+
+        String toHex() {
+            long a = fmix64(h1 ^ length);
+            long b = fmix64(h2 + a);
+            char[] hex = new char[32];
+            for (int i = 0; i < 16; i++) {
+                hex[15 - i] = HEX[(int) (a >>> (i * 4)) & 0xf];
+                hex[31 - i] = HEX[(int) (b >>> (i * 4)) & 0xf];
+            }
+            return new String(hex);
+        }
+
+        private static long fmix64(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package tk.zhangh.redis;
+
+import com.alibaba.fastjson.JSON;
+import tk.zhangh.redis.Chapter02.Inventory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 数据行缓存（inv:ROW_ID）编码
+ * JSON 编码以 '{' 开头，二进制编码以版本号 1 开头，decodeAny 根据首字节自动识别
+ * Created by ZhangHao on 2017/10/18.
+ */
+public interface RowCodec {
+
+    RowCodec JSON_CODEC = new Json();
+    RowCodec BINARY_CODEC = new Binary();
+
+    byte[] encode(Inventory row);
+
+    Inventory decode(byte[] data);
+
+    /**
+     * 根据首字节识别编码并解码
+     */
+    static Inventory decodeAny(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        if (data.length > 0 && data[0] == Binary.VERSION) {
+            return BINARY_CODEC.decode(data);
+        }
+        return JSON_CODEC.decode(data);
+    }
+
+    /**
+     * fastjson 编码
+     */
+    class Json implements RowCodec {
+        @Override
+        public byte[] encode(Inventory row) {
+            return JSON.toJSONString(row).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Inventory decode(byte[] data) {
+            return JSON.parseObject(new String(data, StandardCharsets.UTF_8), Inventory.class);
+        }
+    }
+
+    /**
+     * 二进制编码
+     * 版本号, id长度+1(varint), id(UTF-8), data长度+1(varint), data(UTF-8), time(zigzag varint)
+     * 长度为 0 表示 null
+     */
+    class Binary implements RowCodec {
+        static final byte VERSION = 1;
+
+        @Override
+        public byte[] encode(Inventory row) {
+            byte[] id = row.getId() == null ? null : row.getId().getBytes(StandardCharsets.UTF_8);
+            byte[] data = row.getData() == null ? null : row.getData().getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (id == null ? 0 : id.length) + (data == null ? 0 : data.length) + 16);
+            out.write(VERSION);
+            writeString(out, id);
+            writeString(out, data);
+            writeVarint(out, (row.getTime() << 1) ^ (row.getTime() >> 63));
+            return out.toByteArray();
+        }
+
+        @Override
+        public Inventory decode(byte[] data) {
+            if (data[0] != VERSION) {
+                throw new IllegalArgumentException("Unsupported row version: " + data[0]);
+            }
+            int[] position = {1};
+            String id = readString(data, position);
+            String value = readString(data, position);
+            long time = readVarint(data, position);
+            return new Inventory(id, value, (time >>> 1) ^ -(time & 1));
+        }
+
+        private static void writeString(ByteArrayOutputStream out, byte[] value) {
+            if (value == null) {
+                writeVarint(out, 0);
+                return;
+            }
+            writeVarint(out, value.length + 1L);
+            out.write(value, 0, value.length);
+        }
+
+        private static String readString(byte[] data, int[] position) {
+            int length = (int) readVarint(data, position) - 1;
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(data, position[0], length, StandardCharsets.UTF_8);
+            position[0] += length;
+            return value;
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private static long readVarint(byte[] data, int[] position) {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = data[position[0]++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+}
@@ -3,6 +3,17 @@ package tk.zhangh.redis;
 import org.junit.Test;
 import redis.clients.jedis.Jedis;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
 import static tk.zhangh.redis.Config.HOST;
 import static tk.zhangh.redis.Config.PORT;
 
@@ -24,6 +35,117 @@ public class Chapter01Test {
         APP.articleVote(JEDIS, USER, ARTICLE);
     }
 
+    @Test
+    public void articleVoteScript() throws Exception {
+        String article = "article:" + APP.postArticle(JEDIS, USER, ARTICLE, LINK);
+        assert APP.articleVoteScript(JEDIS, "other-" + USER, article);
+        assert !APP.articleVoteScript(JEDIS, "other-" + USER, article);  // 重复投票
+        assert !APP.articleVoteScript(JEDIS, USER, article);  // 作者已投票
+    }
+
+    @Test
+    public void bitmapVoters() throws Exception {
+        for (boolean chunked : new boolean[]{false, true}) {
+            Chapter01 app = new Chapter01();
+            BitmapVoters voters = new BitmapVoters(chunked);
+            app.setBitmapVoters(voters);
+            String articleId = app.postArticle(JEDIS, USER, ARTICLE, LINK);
+            String article = "article:" + articleId;
+            assert voters.hasVoted(JEDIS, articleId, USER);
+
+            app.articleVote(JEDIS, "bitmap-user1", article);
+            assert !app.articleVoteScript(JEDIS, "bitmap-user1", article);  // 重复投票
+            assert app.articleVoteScript(JEDIS, "bitmap-user2", article);
+            app.voteBatch(JEDIS, Arrays.asList(
+                    new Chapter01.Vote("bitmap-user2", article),
+                    new Chapter01.Vote("bitmap-user3", article)));
+            assert "4".equals(JEDIS.hget(article, "votes"));
+            assert voters.hasVoted(JEDIS, articleId, "bitmap-user3");
+            assert !voters.hasVoted(JEDIS, articleId, "bitmap-user4");
+
+            JEDIS.scriptFlush();  // 流水线中 EVALSHA 返回 NOSCRIPT 时重新加载
+            app.voteBatch(JEDIS, Collections.singletonList(new Chapter01.Vote("bitmap-user4", article)));
+            assert "5".equals(JEDIS.hget(article, "votes"));
+        }
+    }
+
+    @Test
+    public void bitmapVotersLegacySet() throws Exception {
+        for (boolean chunked : new boolean[]{false, true}) {
+            String articleId = APP.postArticle(JEDIS, USER, ARTICLE, LINK);  // 旧格式：用户名集合
+            String article = "article:" + articleId;
+            APP.articleVote(JEDIS, "legacy-user", article);
+
+            Chapter01 app = new Chapter01();
+            BitmapVoters voters = new BitmapVoters(chunked);
+            app.setBitmapVoters(voters);
+            assert voters.hasVoted(JEDIS, articleId, "legacy-user");  // 转换前查询集合
+            assert !app.articleVoteScript(JEDIS, "legacy-user", article);  // 转换后仍然去重
+            assert !"set".equals(JEDIS.type("voted:" + articleId));
+            assert voters.hasVoted(JEDIS, articleId, USER);
+            assert app.articleVoteScript(JEDIS, "bitmap-user", article);
+            assert "3".equals(JEDIS.hget(article, "votes"));
+        }
+    }
+
+    @Test
+    public void voteBatch() throws Exception {
+        String article = "article:" + APP.postArticle(JEDIS, USER, ARTICLE, LINK);
+        long counted = APP.voteBatch(JEDIS, Arrays.asList(
+                new Chapter01.Vote("batch-user1", article),
+                new Chapter01.Vote("batch-user2", article),
+                new Chapter01.Vote("batch-user1", article),  // 批次内重复投票
+                new Chapter01.Vote(USER, article)));  // 作者已投票
+        assert counted == 2;
+        assert "3".equals(JEDIS.hget(article, "votes"));
+    }
+
+    @Test
+    public void voteBatchThread() throws Exception {
+        String article = "article:" + APP.postArticle(JEDIS, USER, ARTICLE, LINK);
+        Chapter01.VoteBatchThread thread = new Chapter01.VoteBatchThread(APP, new Jedis(HOST, PORT), 100, 50);
+        thread.start();
+        for (int i = 0; i < 10; i++) {
+            thread.vote("thread-user" + i, article);
+        }
+        Thread.sleep(500);
+        assert "11".equals(JEDIS.hget(article, "votes"));
+        thread.quit();
+        thread.join();
+    }
+
+    @Test
+    public void voteBatchThreadBitmapVoters() throws Exception {
+        Chapter01 app = new Chapter01();
+        app.setBitmapVoters(new BitmapVoters(false));
+        String article = "article:" + app.postArticle(JEDIS, USER, ARTICLE, LINK);
+        Chapter01.VoteBatchThread thread = new Chapter01.VoteBatchThread(app, new Jedis(HOST, PORT), 100, 50);
+        thread.start();
+        for (int i = 0; i < 10; i++) {
+            thread.vote("thread-user" + i, article);
+        }
+        Thread.sleep(500);
+        thread.quit();
+        thread.join();
+        assert thread.getFailedVotes().get() == 0 && thread.getLastError() == null;
+        assert "11".equals(JEDIS.hget(article, "votes"));
+    }
+
+    @Test
+    public void voteBatchThreadFailure() throws Exception {
+        Chapter01.VoteBatchThread thread = new Chapter01.VoteBatchThread(APP, new Jedis("localhost", 1), 20, 50);
+        thread.start();
+        for (int i = 0; i < 10; i++) {
+            thread.vote("thread-user" + i, "article:0");
+        }
+        Thread.sleep(200);
+        assert thread.isAlive();  // 提交失败后继续运行
+        thread.quit();
+        thread.join();
+        assert thread.getFailedVotes().get() == 10;
+        assert thread.getLastError() != null;
+    }
+
     @Test
     public void postArticle() throws Exception {
         APP.postArticle(JEDIS, USER, ARTICLE, LINK);
@@ -39,11 +161,158 @@ public class Chapter01Test {
         APP.getArticles(JEDIS, 1, "time:");
     }
 
+    @Test
+    public void getArticlesBatch() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            APP.postArticle(JEDIS, USER, ARTICLE, LINK);
+        }
+        List<Map<String, String>> articles = APP.getArticlesBatch(JEDIS, 1, "score:");
+        assert articles.size() == 25;
+        for (Map<String, String> article : articles) {
+            assert article.containsKey("id");
+            if (article.containsKey("title")) {  // 其他测试可能留下没有散列的成员
+                assert article.keySet().containsAll(Arrays.asList("title", "link", "user", "now", "votes"));
+            }
+        }
+        assertProjected(APP.getArticlesBatch(JEDIS, 1, "score:", "title", "link", "votes"), 25, false,
+                "title", "link", "votes");
+    }
+
+    /**
+     * 检查页大小，以及每篇文章只包含指定字段和 id
+     *
+     * @param complete 每篇文章都包含全部指定字段
+     */
+    private static void assertProjected(List<Map<String, String>> articles, int size, boolean complete,
+                                        String... fields) {
+        assert articles.size() == size;
+        Set<String> expected = new HashSet<String>(Arrays.asList(fields));
+        expected.add("id");
+        for (Map<String, String> article : articles) {
+            assert article.containsKey("id");
+            assert complete ? article.keySet().equals(expected) : expected.containsAll(article.keySet());
+        }
+    }
+
+    @Test
+    public void getArticlesByCursor() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            APP.postArticle(JEDIS, USER, ARTICLE, LINK);
+        }
+        Set<String> ids = new HashSet<String>();
+        Chapter01.ArticlePage page = APP.getArticlesByCursor(JEDIS, "score:", null, "title");
+        assert page.getArticles().size() == 25;
+        assert page.getCursor() != null;
+        for (Map<String, String> article : page.getArticles()) {
+            ids.add(article.get("id"));
+        }
+        page = APP.getArticlesByCursor(JEDIS, "score:", page.getCursor(), "title");
+        for (Map<String, String> article : page.getArticles()) {
+            assert ids.add(article.get("id"));  // 不与上一页重复
+        }
+    }
+
+    @Test
+    public void getArticlesByCursorInvalid() throws Exception {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String valid = encoder.encodeToString("1507000000 article:1".getBytes(StandardCharsets.UTF_8));
+        List<String> cursors = Arrays.asList("not a cursor!", valid.substring(0, 1),
+                encoder.encodeToString("1507000000".getBytes(StandardCharsets.UTF_8)),
+                encoder.encodeToString("abc article:1".getBytes(StandardCharsets.UTF_8)),
+                encoder.encodeToString("1507000000 ".getBytes(StandardCharsets.UTF_8)));
+        for (String cursor : cursors) {
+            try {
+                APP.getArticlesByCursor(JEDIS, "score:", cursor, "title");
+                assert false : cursor;
+            } catch (IllegalArgumentException e) {
+                assert e.getMessage().startsWith("Invalid cursor");
+            }
+        }
+    }
+
+    @Test
+    public void articleCache() throws Exception {
+        ArticleCache cache = new ArticleCache(100, 10000);
+        ArticleCache.InvalidationThread thread = new ArticleCache.InvalidationThread(new Jedis(HOST, PORT), cache);
+        thread.start();
+        Thread.sleep(500);
+
+        Chapter01 app = new Chapter01();
+        app.setArticleCache(cache);
+        String article = "article:" + app.postArticle(JEDIS, USER, ARTICLE, LINK);
+        assert "1".equals(cache.get(JEDIS, article).get("votes"));
+        assert "1".equals(cache.get(JEDIS, article).get("votes"));
+        assert cache.getHits().get() == 1;
+
+        app.articleVote(JEDIS, "cache-user", article);
+        Thread.sleep(500);
+        assert "2".equals(cache.get(JEDIS, article).get("votes"));  // 投票后本地缓存失效
+        app.getArticles(JEDIS, 1);
+        thread.quit();
+    }
+
+    @Test
+    public void articleCacheInvalidatePerKey() throws Exception {
+        ArticleCache cache = new ArticleCache(100, 10000);
+        String article = "article:" + APP.postArticle(JEDIS, USER, ARTICLE, LINK);
+        String other = "article:" + APP.postArticle(JEDIS, USER, ARTICLE, LINK);
+        cache.invalidate(other);  // 失效其他文章不影响本文章写入本地缓存
+        cache.get(JEDIS, article);
+        cache.get(JEDIS, article);
+        assert cache.getHits().get() == 1;
+    }
+
     @Test
     public void addGroups() throws Exception {
         APP.addGroups(JEDIS, ARTICLE, new String[]{GROUP});
     }
 
+    @Test
+    public void incrementalGroups() throws Exception {
+        Chapter01 app = new Chapter01(true);
+        String articleId = app.postArticle(JEDIS, USER, ARTICLE, LINK);
+        String article = "article:" + articleId;
+        app.addGroups(JEDIS, articleId, new String[]{GROUP});
+        assert JEDIS.zscore("score:" + GROUP, article).equals(JEDIS.zscore("score:", article));
+
+        app.articleVote(JEDIS, "group-user1", article);
+        app.articleVoteScript(JEDIS, "group-user2", article);
+        app.voteBatch(JEDIS, Arrays.asList(new Chapter01.Vote("group-user3", article)));
+        assert JEDIS.zscore("score:" + GROUP, article).equals(JEDIS.zscore("score:", article));
+        app.getGroupArticles(JEDIS, GROUP, 1);
+    }
+
+    @Test
+    public void incrementalGroupsConcurrentVotes() throws Exception {
+        Chapter01 app = new Chapter01(true);
+        String articleId = app.postArticle(JEDIS, USER, ARTICLE, LINK);
+        String article = "article:" + articleId;
+        List<Thread> voters = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            voters.add(new Thread(() -> {
+                try (Jedis conn = new Jedis(HOST, PORT)) {
+                    for (int i = 0; i < 50; i++) {
+                        app.articleVote(conn, "concurrent-user" + thread + "-" + i, article);
+                    }
+                }
+            }));
+        }
+        for (Thread voter : voters) {
+            voter.start();
+        }
+        for (int g = 0; g < 20; g++) {
+            app.addGroups(JEDIS, articleId, new String[]{GROUP + g});  // 与投票并发添加分组
+        }
+        for (Thread voter : voters) {
+            voter.join();
+        }
+        Double score = JEDIS.zscore("score:", article);
+        for (int g = 0; g < 20; g++) {
+            assert score.equals(JEDIS.zscore("score:" + GROUP + g, article));
+        }
+    }
+
     @Test
     public void getGroupArticles() throws Exception {
         APP.getGroupArticles(JEDIS, GROUP, 1);
@@ -54,4 +323,60 @@ public class Chapter01Test {
         APP.getGroupArticles(JEDIS, GROUP, 1, GROUP);
     }
 
+    @Test
+    public void getGroupArticlesRefreshAhead() throws Exception {
+        Chapter01 app = new Chapter01();
+        app.setRefreshAheadSeconds(60);  // 每次读取都会刷新
+        app.getGroupArticles(JEDIS, GROUP, 1);
+        app.getGroupArticles(JEDIS, GROUP, 1);
+        assert app.getRebuildStats().getRebuilds().get() >= 1;
+        assert JEDIS.ttl("score:" + GROUP) > 0;
+    }
+
+    @Test
+    public void getGroupArticlesSingleFlight() throws Exception {
+        Chapter01 app = new Chapter01();
+        app.setRebuildWaitMillis(10000);
+        String group = "single-flight-" + UUID.randomUUID();
+        app.addGroups(JEDIS, app.postArticle(JEDIS, USER, ARTICLE, LINK), new String[]{group});
+        // 先占住租约，保证所有线程都在排序分组不存在时到达，再释放租约
+        String lease = "rebuild:score:" + group;
+        JEDIS.set(lease, "test", "NX", "PX", 10000);
+
+        int n = 8;
+        List<Thread> readers = new ArrayList<>();
+        List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < n; t++) {
+            readers.add(new Thread(() -> {
+                try (Jedis conn = new Jedis(HOST, PORT)) {
+                    sizes.add(app.getGroupArticles(conn, group, 1).size());
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(500);
+        JEDIS.del(lease);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Chapter01.RebuildStats stats = app.getRebuildStats();
+        assert stats.getRebuilds().get() == 1;
+        assert stats.getWaits().get() == n - 1;
+        assert stats.getFallbacks().get() == 0;
+        assert sizes.size() == n && !sizes.contains(0);
+    }
+
+    @Test
+    public void getGroupArticlesBatch() throws Exception {
+        String group = "batch-" + UUID.randomUUID();
+        for (int i = 0; i < 30; i++) {
+            APP.addGroups(JEDIS, APP.postArticle(JEDIS, USER, ARTICLE, LINK), new String[]{group});
+        }
+        assertProjected(APP.getGroupArticlesBatch(JEDIS, group, 1, "score:", "title", "link", "votes"), 25, true,
+                "title", "link", "votes");
+        assertProjected(APP.getGroupArticlesBatch(JEDIS, group, 2, "score:", "title"), 5, true, "title");
+    }
+
 }
\ No newline at end of file
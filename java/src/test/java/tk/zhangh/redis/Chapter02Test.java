@@ -3,11 +3,17 @@ package tk.zhangh.redis;
 import org.junit.After;
 import org.junit.Test;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Tuple;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import static tk.zhangh.redis.Config.HOST;
@@ -56,6 +62,187 @@ public class Chapter02Test {
         assert s == 0;
     }
 
+    @Test
+    public void testTokenWriteBehind() throws InterruptedException {
+        System.out.println("\n----- testTokenWriteBehind -----");
+        Chapter02.TokenWriteBehindThread thread = new Chapter02.TokenWriteBehindThread(APP, new Jedis(HOST), 50, 1000);
+        thread.start();
+        String token = UUID.randomUUID().toString();
+        for (int i = 0; i < 100; i++) {
+            thread.updateToken(token, "username", "itemX");
+        }
+        Thread.sleep(500);
+
+        String r = APP.checkToken(CONN, token);
+        System.out.println("User for token: " + r + ", itemX views: " + CONN.zscore("viewed:", "itemX"));
+        assert "username".equals(r);
+        assert CONN.zscore("viewed:", "itemX") == -100;
+        assert CONN.zcard("viewed:" + token) == 1;
+
+        thread.quit();
+        thread.join(2000);
+    }
+
+    @Test
+    public void testTokenWriteBehindViews() throws InterruptedException {
+        System.out.println("\n----- testTokenWriteBehindViews -----");
+        Chapter02 app = new Chapter02();
+        app.setViewDecayRate(Math.log(2));  // 每秒权重翻倍
+        CONN.set("viewed:epoch", String.valueOf(System.currentTimeMillis() / 1000.0 - 2));
+        Chapter02.TokenWriteBehindThread thread = new Chapter02.TokenWriteBehindThread(app, new Jedis(HOST), 50, 1000);
+        thread.start();
+        for (int i = 0; i < 3; i++) {
+            thread.updateToken(UUID.randomUUID().toString(), "username", "itemA");
+        }
+        Thread.sleep(500);
+        double score = CONN.zscore("viewed:", "itemA");
+        System.out.println("itemA score: " + score);
+        assert score <= -11.9 && score > -13;  // 衰减模式，3 次访问，权重约为 4
+
+        ViewCounter counter = new ViewCounter(100);
+        app.setViewCounter(counter);
+        for (int i = 0; i < 3; i++) {
+            thread.updateToken(UUID.randomUUID().toString(), "username", "itemB");
+        }
+        Thread.sleep(500);
+        assert CONN.zscore("viewed:", "itemB") == null;  // 本地聚合
+        assert counter.getViews().get() == 3;
+        thread.quit();
+        thread.join(2000);
+    }
+
+    @Test
+    public void testTokenWriteBehindFailure() throws InterruptedException {
+        System.out.println("\n----- testTokenWriteBehindFailure -----");
+        Chapter02.TokenWriteBehindThread thread =
+                new Chapter02.TokenWriteBehindThread(APP, new Jedis("localhost", 1), 20, 1000);
+        thread.start();
+        for (int i = 0; i < 10; i++) {
+            thread.updateToken(UUID.randomUUID().toString(), "username", "itemX");
+        }
+        Thread.sleep(200);
+        assert thread.isAlive();  // 写入失败后继续运行
+        assert thread.getFailedFlushes().get() > 0;
+        assert thread.getDroppedEntries().get() == 0;
+        thread.updateToken(UUID.randomUUID().toString(), "username", "itemX");  // 缓冲未满，不阻塞
+        thread.quit();
+        thread.join(2000);
+    }
+
+    @Test
+    public void testViewCounter() throws InterruptedException {
+        System.out.println("\n----- testViewCounter -----");
+        Chapter02 app = new Chapter02();
+        ViewCounter counter = new ViewCounter(100);
+        app.setViewCounter(counter);
+        ViewCounter.FlushThread thread = new ViewCounter.FlushThread(new Jedis(HOST), counter, 50);
+        thread.start();
+        String token = UUID.randomUUID().toString();
+        for (int i = 0; i < 100; i++) {
+            app.updateToken(CONN, token, "username", i % 4 == 0 ? "itemB" : "itemA");
+        }
+        thread.quit();
+        thread.join(2000);
+
+        System.out.println("itemA views: " + CONN.zscore("viewed:", "itemA") + ", itemB views: "
+                + CONN.zscore("viewed:", "itemB") + ", writes: " + counter.getWrites());
+        assert CONN.zscore("viewed:", "itemA") == -75;
+        assert CONN.zscore("viewed:", "itemB") == -25;
+        assert counter.getDropped().get() == 0;
+        assert counter.getWrites().get() < counter.getViews().get();
+    }
+
+    @Test
+    public void testViewCounterDecay() {
+        System.out.println("\n----- testViewCounterDecay -----");
+        Chapter02 app = new Chapter02();
+        ViewCounter counter = new ViewCounter(100);
+        app.setViewCounter(counter);
+        app.setViewDecayRate(Math.log(2));  // 每秒权重翻倍
+        CONN.set("viewed:epoch", String.valueOf(System.currentTimeMillis() / 1000.0 - 2));
+        String token = UUID.randomUUID().toString();
+        for (int i = 0; i < 3; i++) {
+            app.updateToken(CONN, token, "username", "itemA");
+        }
+        assert CONN.zscore("viewed:", "itemA") == null;  // 本地聚合
+        counter.flush(CONN);
+        double score = CONN.zscore("viewed:", "itemA");
+        System.out.println("itemA score: " + score);
+        assert score <= -11.9 && score > -13;  // 3 次访问，权重约为 4
+    }
+
+    @Test
+    public void testViewCounterFlushFailure() throws InterruptedException {
+        System.out.println("\n----- testViewCounterFlushFailure -----");
+        ViewCounter counter = new ViewCounter(100);
+        for (int i = 0; i < 10; i++) {
+            counter.record("itemA");
+        }
+        ViewCounter.FlushThread thread = new ViewCounter.FlushThread(new Jedis("localhost", 1), counter, 20);
+        thread.start();
+        Thread.sleep(200);
+        assert thread.isAlive();  // 写入失败后继续运行
+        thread.quit();
+        thread.join(2000);
+        assert counter.getFailedFlushes().get() > 0;
+        assert counter.drain().get("itemA") == 10;  // 访问次数已放回
+    }
+
+    @Test
+    public void testSessionReaper() throws InterruptedException {
+        System.out.println("\n----- testSessionReaper -----");
+        for (int i = 0; i < 1000; i++) {
+            APP.updateToken(CONN, UUID.randomUUID().toString(), "username", "itemX");
+        }
+        System.out.println("We'll keep only 10 sessions using 4 workers");
+        Chapter02.SessionReaperThread thread =
+                new Chapter02.SessionReaperThread(new JedisPool(HOST, PORT), 10, 4, true);
+        thread.start();
+        Thread.sleep(1000);
+        thread.quit();
+        thread.join(2000);
+
+        long s = CONN.hlen("login:");
+        System.out.println("Sessions left: " + s + ", reaped: " + thread.getReaped() + ", lag: " + thread.getLagSeconds());
+        assert s == 10;
+        assert CONN.zcard("recent:") == 10;
+    }
+
+    @Test
+    public void testLoginIndex() throws InterruptedException {
+        System.out.println("\n----- testLoginIndex -----");
+        for (int i = 0; i < 300; i++) {
+            APP.updateToken(CONN, UUID.randomUUID().toString(), "username", "itemX");
+        }
+        String legacy = CONN.hkeys("login:").iterator().next();
+
+        Chapter02 app = new Chapter02();
+        LoginIndex index = new LoginIndex(8, true);
+        app.setLoginIndex(index);
+        String token = UUID.randomUUID().toString();
+        app.updateToken(CONN, token, "newuser", "itemX");
+        assert "username".equals(app.checkToken(CONN, legacy));
+        assert "newuser".equals(app.checkToken(CONN, token));
+
+        long migrated = index.migrate(CONN, 100);
+        String encoding = CONN.objectEncoding(index.key(token));
+        System.out.println("Migrated: " + migrated + ", sessions: " + index.size(CONN) + ", bucket encoding: " + encoding);
+        assert migrated == 300;
+        assert !CONN.exists("login:");
+        assert index.size(CONN) == 301;
+        assert "ziplist".equals(encoding) || "listpack".equals(encoding);
+        assert "username".equals(app.checkToken(CONN, legacy));
+
+        Chapter02.SessionReaperThread thread =
+                new Chapter02.SessionReaperThread(new JedisPool(HOST, PORT), 10, 4, true);
+        thread.setLoginIndex(index);
+        thread.start();
+        Thread.sleep(1000);
+        thread.quit();
+        thread.join(2000);
+        assert index.size(CONN) == 10;
+    }
+
     @Test
     public void testShoppingCartCookies() throws InterruptedException {
         System.out.println("\n----- testShopppingCartCookies -----");
@@ -91,6 +278,33 @@ public class Chapter02Test {
         assert r.size() == 0;
     }
 
+    @Test
+    public void testUpdateCart() {
+        System.out.println("\n----- testUpdateCart -----");
+        String token = UUID.randomUUID().toString();
+        APP.addToCart(CONN, token, "itemY", 3);
+        assert "3".equals(CONN.hget("cart:" + token, "itemY"));
+
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        deltas.put("itemX", 2);
+        deltas.put("itemY", -5);
+        deltas.put("itemZ", 1);
+        Chapter02.Cart updated = APP.updateCart(CONN, token, deltas);
+        assert updated.size() == 3;
+        assert updated.count("itemX") == 2;
+        assert updated.count("itemY") == 0;
+
+        Chapter02.Cart cart = APP.getCart(CONN, token);
+        System.out.println("Our shopping cart currently has:");
+        for (int i = 0; i < cart.size(); i++) {
+            System.out.println("  " + cart.getItem(i) + ": " + cart.getCount(i));
+        }
+        assert cart.size() == 2;
+        assert cart.count("itemX") == 2;
+        assert cart.count("itemY") == 0;
+        assert cart.count("itemZ") == 1;
+    }
+
     @Test
     public void testCacheRows() throws InterruptedException {
         System.out.println("\n----- testCacheRows -----");
@@ -113,6 +327,7 @@ public class Chapter02Test {
         String r = CONN.get("inv:itemX");
         System.out.println(r + "\n");
         assert r != null;
+        assert "itemX".equals(APP.getCachedRow(CONN, "itemX").getId());
 
         System.out.println("We'll check again in 5 seconds...");
         Thread.sleep(5000);
@@ -136,6 +351,70 @@ public class Chapter02Test {
         }
     }
 
+    @Test
+    public void testRowScheduler() throws InterruptedException {
+        System.out.println("\n----- testRowScheduler -----");
+        for (int i = 0; i < 100; i++) {
+            APP.scheduleRowCache(CONN, "item" + i, 2);
+        }
+        Chapter02.RowSchedulerThread thread = new Chapter02.RowSchedulerThread(new Jedis(HOST), 4, 50);
+        thread.setRowCodec(RowCodec.BINARY_CODEC);
+        thread.start();
+        Thread.sleep(1000);
+        for (int i = 0; i < 100; i++) {
+            assert ("item" + i).equals(APP.getCachedRow(CONN, "item" + i).getId());
+        }
+        String r = CONN.get("inv:item0");
+
+        Thread.sleep(2500);
+        System.out.println("Rows cached: " + thread.getCachedRows() + ", lag: " + thread.getLagMillis() + "ms");
+        assert !r.equals(CONN.get("inv:item0"));
+
+        APP.scheduleRowCache(CONN, "item0", -1);
+        Thread.sleep(2500);
+        assert CONN.get("inv:item0") == null;
+
+        thread.quit();
+        thread.join(2000);
+    }
+
+    @Test
+    public void testRowSchedulerFailure() throws InterruptedException {
+        System.out.println("\n----- testRowSchedulerFailure -----");
+        for (int i = 0; i < 10; i++) {
+            APP.scheduleRowCache(CONN, "item" + i, 5);
+        }
+        Chapter02.RowSchedulerThread thread = new Chapter02.RowSchedulerThread(new Jedis(HOST), 4, 50, rowId -> {
+            if (rowId.equals("item0")) {
+                throw new IllegalStateException("database unavailable");
+            }
+            return Chapter02.Inventory.get(rowId);
+        });
+        thread.start();
+        Thread.sleep(1000);
+        thread.quit();
+        thread.join(2000);
+
+        System.out.println("Rows cached: " + thread.getCachedRows() + ", failed: " + thread.getFailedRows()
+                + ", last error: " + thread.getLastError());
+        assert CONN.get("inv:item0") == null;
+        assert "item1".equals(APP.getCachedRow(CONN, "item1").getId());
+        assert thread.getCachedRows().get() == 9;
+        assert thread.getFailedRows().get() == 1;
+        assert thread.getLastError() instanceof IllegalStateException;
+    }
+
+    @Test
+    public void testRowCodecNulls() {
+        System.out.println("\n----- testRowCodecNulls -----");
+        for (RowCodec codec : new RowCodec[]{RowCodec.JSON_CODEC, RowCodec.BINARY_CODEC}) {
+            Chapter02.Inventory row = RowCodec.decodeAny(codec.encode(new Chapter02.Inventory()));
+            assert row.getId() == null && row.getData() == null && row.getTime() == 0;
+            row = RowCodec.decodeAny(codec.encode(new Chapter02.Inventory("itemX", "", -1)));
+            assert "itemX".equals(row.getId()) && "".equals(row.getData()) && row.getTime() == -1;
+        }
+    }
+
     @Test
     public void testCacheRequest() {
         System.out.println("\n----- testCacheRequest -----");
@@ -162,6 +441,177 @@ public class Chapter02Test {
         assert !APP.canCache(CONN, "http://test.com/?item=itemX&_=1234536");
     }
 
+    @Test
+    public void testHotItemFilter() throws InterruptedException {
+        System.out.println("\n----- testHotItemFilter -----");
+        String token = UUID.randomUUID().toString();
+        APP.updateToken(CONN, token, "username", "itemX");
+
+        Chapter02 app = new Chapter02();
+        HotItemFilter filter = new HotItemFilter(10000);
+        app.setHotItemFilter(filter);
+        Chapter02.DaemonThread thread = new HotItemFilter.RefreshThread(new Jedis(HOST), filter, 100);
+        thread.start();
+        Thread.sleep(500);
+
+        assert app.canCache(CONN, "http://test.com/?item=itemX");
+        assert app.canCache(CONN, "http://test.com/?a=1&item=itemX#top");
+        assert !app.canCache(CONN, "http://test.com/?item=itemY");
+        assert !app.canCache(CONN, "http://test.com/");
+        assert !app.canCache(CONN, "http://test.com/?item=itemX&_=1234536");
+        thread.quit();
+    }
+
+    @Test
+    public void testCacheRequestCoalescing() throws InterruptedException {
+        System.out.println("\n----- testCacheRequestCoalescing -----");
+        APP.updateToken(CONN, UUID.randomUUID().toString(), "username", "itemX");
+        String url = "http://test.com/?item=itemX";
+
+        Chapter02 app = new Chapter02();
+        app.setSoftTtl(1);
+        app.setPageLeaseMillis(1000);
+        AtomicLong version = new AtomicLong();
+        Function<String, String> slowCallback = s -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "content " + version.incrementAndGet();
+        };
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Jedis conn = new Jedis(HOST, PORT);
+            threads.add(new Thread(() -> app.cacheRequest(conn, url, slowCallback)));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.println("Origin calls after concurrent misses: " + app.getCacheStats().getOriginCalls());
+        assert app.getCacheStats().getOriginCalls().get() == 1;
+
+        Thread.sleep(1500);
+        String refreshed = app.cacheRequest(CONN, url, slowCallback);
+        System.out.println("After the soft TTL we refresh: " + refreshed);
+        assert "content 2".equals(refreshed);
+    }
+
+    @Test
+    public void testCacheRequestCompressed() {
+        System.out.println("\n----- testCacheRequestCompressed -----");
+        APP.updateToken(CONN, UUID.randomUUID().toString(), "username", "itemX");
+        String url = "http://test.com/?item=itemX";
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            page.append("<li>content for ").append(url).append("</li>");
+        }
+
+        System.out.println("An old plain text page is still readable");
+        APP.cacheRequest(CONN, url, s -> "plain content");
+        Chapter02 app = new Chapter02();
+        app.setPageCodec(new PageCodec(1024));
+        assert "plain content".equals(app.cacheRequest(CONN, url, null));
+
+        CONN.flushAll();
+        APP.updateToken(CONN, UUID.randomUUID().toString(), "username", "itemX");
+        String result = app.cacheRequest(CONN, url, s -> page.toString());
+        assert page.toString().equals(result);
+        assert page.toString().equals(app.cacheRequest(CONN, url, null));
+        long stored = CONN.strlen("cache:" + APP.hashRequest(url));
+        System.out.println("Page of " + page.length() + " chars stored in " + stored + " bytes");
+        assert stored < page.length();
+
+        System.out.println("Compressed pages are still readable after the codec is disabled");
+        app.setPageCodec(null);
+        assert page.toString().equals(app.cacheRequest(CONN, url, null));
+    }
+
+    @Test
+    public void testHashRequest() {
+        System.out.println("\n----- testHashRequest -----");
+        String key = APP.hashRequest("http://test.com/?item=itemX&page=2");
+        System.out.println("Request key: " + key);
+        assert key.equals(APP.hashRequest("HTTP://Test.com/?page=2&item=itemX"));
+        assert key.equals(APP.hashRequest("http://test.com/?page=2&utm_source=mail&item=itemX#reviews"));
+        assert !key.equals(APP.hashRequest("http://test.com/?item=itemX&page=3"));
+        assert !key.equals(APP.hashRequest("http://test.com/item?item=itemX&page=2"));
+        assert APP.hashRequest("http://test.com").equals(APP.hashRequest("http://test.com/"));
+        assert APP.hashRequest("http://test.com/?q=a%2fb").equals(APP.hashRequest("http://test.com/?q=a%2Fb"));
+    }
+
+    @Test
+    public void testCacheRequestL1() {
+        System.out.println("\n----- testCacheRequestL1 -----");
+        APP.updateToken(CONN, UUID.randomUUID().toString(), "username", "itemX");
+        String url = "http://test.com/?item=itemX";
+        APP.cacheRequest(CONN, url, s -> "content for " + s);
+
+        Chapter02 app = new Chapter02();
+        app.setL1Cache(new PageL1Cache(1 << 20, 10000));
+        assert app.cacheRequest(CONN, url, null) != null;  // L2 命中，写入 L1
+        CONN.flushAll();
+        APP.updateToken(CONN, UUID.randomUUID().toString(), "username", "itemX");
+        String r = app.cacheRequest(CONN, url, null);  // L1 命中
+        System.out.println("L1 hits: " + app.getL1Cache().getHits() + ", L2 hits: " + app.getCacheStats().getL2Hits()
+                + ", L1 bytes: " + app.getL1Cache().getBytes());
+        assert ("content for " + url).equals(r);
+        assert app.getL1Cache().getHits().get() == 1;
+    }
+
+    @Test
+    public void testL1TtlCheck() {
+        System.out.println("\n----- testL1TtlCheck -----");
+        Chapter02 app = new Chapter02();
+        app.setL1Cache(new PageL1Cache(1 << 20, 10000));
+        try {
+            app.setSoftTtl(5);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+        try {
+            app.setPageTtl(5);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+        app.setSoftTtl(10);
+        app.setPageTtl(60);
+    }
+
+    @Test
+    public void testPageL1CacheAdmission() {
+        System.out.println("\n----- testPageL1CacheAdmission -----");
+        PageL1Cache cache = new PageL1Cache(800, 10000);  // 放得下 3 个 100 字符的页面
+        String small = String.join("", Collections.nCopies(100, "x"));
+        String large = small + small;  // 需要淘汰 2 个页面
+        int[] reads = {1, 5, 5, 3, 6};
+        for (int i = 0; i < reads.length; i++) {
+            for (int j = 0; j < reads[i]; j++) {
+                cache.get("page" + i);
+            }
+        }
+        cache.put("page0", small);
+        cache.put("page1", small);
+        cache.put("page2", small);
+
+        cache.put("page3", large);  // page0 比 page3 冷，page1 比 page3 热
+        assert cache.getRejections().get() == 1;
+        assert cache.size() == 3;
+        assert cache.get("page0") != null;
+
+        cache.put("page4", large);  // page1、page2 比 page4 冷
+        System.out.println("L1 size: " + cache.size() + ", bytes: " + cache.getBytes());
+        assert cache.getRejections().get() == 1;
+        assert cache.size() == 2;
+        assert cache.get("page0") != null && cache.get("page4") != null;
+    }
+
     @Test
     public void testRescaleViewed() throws InterruptedException {
         System.out.println("\n----- testRescaleViewed -----");
@@ -180,6 +630,44 @@ public class Chapter02Test {
         assert newSource > score;
     }
 
+    @Test
+    public void testDecayViewed() throws InterruptedException {
+        System.out.println("\n----- testDecayViewed -----");
+        String token = UUID.randomUUID().toString();
+        System.out.println("itemA is viewed 10 times, 2 seconds later itemB is viewed 4 times");
+
+        Chapter02.RescaleViewedThread rescale = new Chapter02.RescaleViewedThread(new Jedis(HOST));
+        rescale.start();
+        viewAB(APP, token);
+        rescale.quit();
+        Set<String> halving = CONN.zrange("viewed:", 0, -1);
+        System.out.println("Halving every 500ms ranks: " + halving);
+        Thread.sleep(1000);
+        CONN.flushAll();
+
+        Chapter02 app = new Chapter02();
+        app.setViewDecayRate(Math.log(2) / 0.5);
+        Chapter02.DecayViewedThread decay = new Chapter02.DecayViewedThread(new Jedis(HOST), Math.log(2) / 0.5, 1, 100);
+        decay.start();
+        viewAB(app, token);
+        decay.quit();
+        Set<String> decayed = CONN.zrange("viewed:", 0, -1);
+        System.out.println("Exponential decay ranks: " + decayed + ", rebases: " + decay.getRebases());
+        assert new ArrayList<>(halving).equals(new ArrayList<>(decayed));
+        assert "itemB".equals(decayed.iterator().next());
+        assert decay.getRebases().get() > 0;
+    }
+
+    private void viewAB(Chapter02 app, String token) throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            app.updateToken(CONN, token, "username", "itemA");
+        }
+        Thread.sleep(2000);
+        for (int i = 0; i < 4; i++) {
+            app.updateToken(CONN, token, "username", "itemB");
+        }
+    }
+
     private double getScore(String key) {
         Set<Tuple> range = CONN.zrangeWithScores(key, 0, 0);
         Tuple next = range.size() > 0 ? range.iterator().next() : null;
@@ -5,8 +5,12 @@ import org.junit.Test;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Tuple;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static tk.zhangh.redis.Config.HOST;
 import static tk.zhangh.redis.Config.PORT;
@@ -91,4 +95,148 @@ public class Chapter04Test {
         assert i.contains("itemX");
         assert CONN.zscore("market:", "itemX.userX") == null;
     }
-}
\ No newline at end of file
+
+    @Test
+    public void purchaseItemScript() throws Exception {
+        System.out.println("\n----- testPurchaseItemScript -----");
+        CONN.sadd("inventory:userX", "itemX", "itemZ");
+        assert APP.listItemScript(CONN, "itemX", "userX", 10);
+        assert APP.listItemScript(CONN, "itemZ", "userX", 200);
+        assert !APP.listItemScript(CONN, "itemW", "userX", 10);
+        assert CONN.zcard("market:") == 2;
+        assert !CONN.sismember("inventory:userX", "itemX");
+
+        CONN.hset("users:userY", "funds", "125");
+        assert !APP.purchaseItemScript(CONN, "userY", "itemX", "userX", 9);  // 价钱不符
+        assert !APP.purchaseItemScript(CONN, "userY", "itemZ", "userX", 200);  // 余额不足
+        assert !APP.purchaseItem(CONN, "userW", "itemX", "userX", 10);  // 没有余额
+        boolean p = APP.purchaseItemScript(CONN, "userY", "itemX", "userX", 10);
+        System.out.println("Purchasing an item succeeded? " + p + ", funds: " + CONN.hget("users:userY", "funds"));
+        assert p;
+        assert "115".equals(CONN.hget("users:userY", "funds"));
+        assert "10".equals(CONN.hget("users:userX", "funds"));
+        assert CONN.sismember("inventory:userY", "itemX");
+        assert CONN.zscore("market:", "itemX.userX") == null;
+        assert !APP.purchaseItemScript(CONN, "userY", "itemX", "userX", 10);  // 已售出
+        assert !APP.purchaseItem(CONN, "userY", "itemX", "userX", 10);
+    }
+
+    @Test
+    public void purchaseItemLocked() throws Exception {
+        System.out.println("\n----- testPurchaseItemLocked -----");
+        Chapter04 app = new Chapter04();
+        app.setLockAcquireMillis(50);
+        CONN.sadd("inventory:userX", "itemX");
+        assert app.listItemLocked(CONN, "itemX", "userX", 10);
+        assert !app.listItemLocked(CONN, "itemX", "userX", 10);
+
+        CONN.hset("users:userY", "funds", "125");
+        CONN.set("lock:itemX.userX", "someone");  // 其他人持有锁
+        assert !app.purchaseItemLocked(CONN, "userY", "itemX", "userX", 10);
+        assert app.getLockStats().getFailures().get() == 1;
+        assert "someone".equals(CONN.get("lock:itemX.userX"));
+        CONN.del("lock:itemX.userX");
+
+        boolean p = app.purchaseItemLocked(CONN, "userY", "itemX", "userX", 10);
+        System.out.println("Purchasing an item succeeded? " + p + ", funds: " + CONN.hget("users:userY", "funds"));
+        assert p;
+        assert "115".equals(CONN.hget("users:userY", "funds"));
+        assert CONN.sismember("inventory:userY", "itemX");
+        assert CONN.keys("lock:*").isEmpty();
+        assert !app.purchaseItemLocked(CONN, "userY", "itemX", "userX", 10);
+    }
+
+    @Test
+    public void optimisticExecutor() throws Exception {
+        System.out.println("\n----- testOptimisticExecutor -----");
+        OptimisticExecutor executor = new OptimisticExecutor(1, 4, 5);
+        int[] runs = {0};
+        Boolean r = executor.execute(CONN, "op", System.currentTimeMillis() + 1000, false,
+                c -> ++runs[0] < 3 ? null : true);  // 前两次冲突
+        assert r && runs[0] == 3;
+
+        runs[0] = 0;
+        r = executor.execute(CONN, "op", System.currentTimeMillis() + 1000, false, c -> {
+            runs[0]++;
+            return null;
+        });
+        assert !r && runs[0] == 5;  // 达到最大尝试次数
+
+        r = executor.execute(CONN, "op", System.currentTimeMillis() - 1, false, c -> true);
+        assert !r;  // 已过截止时间
+
+        OptimisticExecutor.Stats stats = executor.getStats("op");
+        System.out.println(stats);
+        assert stats.getCalls().get() == 3;
+        assert stats.getSuccesses().get() == 1;
+        assert stats.getGiveUps().get() == 2;
+        assert stats.getAttempts().get(2) == 1;  // 3 次尝试
+        assert stats.getConflicts().get(2) == 1;  // 2 次冲突
+        assert stats.getConflicts().get(3) == 1;  // 5 次冲突
+
+        Chapter04 app = new Chapter04();
+        CONN.sadd("inventory:userX", "itemX");
+        assert app.listItem(CONN, "itemX", "userX", 10);
+        CONN.hset("users:userY", "funds", "125");
+        assert app.purchaseItem(CONN, "userY", "itemX", "userX", 10);
+        assert app.getExecutor().getStats("listItem").getSuccesses().get() == 1;
+        assert app.getExecutor().getStats("purchaseItem").getSuccesses().get() == 1;
+    }
+
+    @Test
+    public void migrateToMinorUnits() throws Exception {
+        System.out.println("\n----- testMigrateToMinorUnits -----");
+        CONN.hset("users:userY", "funds", "125");
+        CONN.hset("users:userX", "name", "X");  // 没有余额
+        CONN.zadd("market:", 10, "itemX.userX");
+        CONN.zadd("market:", 2.5, "itemZ.userX");
+        for (int i = 0; i < 50; i++) {
+            CONN.hset("users:user" + i, "funds", String.valueOf(i));
+        }
+        assert APP.migrateToMinorUnits(CONN, 100, 10) == 53;
+        assert "12500".equals(CONN.hget("users:userY", "funds"));
+        assert CONN.hget("users:userX", "funds") == null;
+        assert "4900".equals(CONN.hget("users:user49", "funds"));
+        assert CONN.zscore("market:", "itemX.userX") == 1000;
+        assert CONN.zscore("market:", "itemZ.userX") == 250;
+        assert APP.migrateToMinorUnits(CONN, 100, 10) == 0;  // 已完成，不重复换算
+        assert "12500".equals(CONN.hget("users:userY", "funds"));
+        assert !CONN.exists("migrate:minor-units:");
+    }
+
+    @Test
+    public void settle() throws Exception {
+        System.out.println("\n----- testSettle -----");
+        CONN.zadd("market:", 100, "itemA.userX");
+        CONN.zadd("market:", 250, "itemB.userX");
+        CONN.zadd("market:", 99, "itemC.userX");
+        CONN.zadd("market:", 50, "itemD.userZ");
+        CONN.hset("users:userY", "funds", "300");
+        CONN.hset("users:userX", "funds", "10");
+
+        List<Chapter04.Trade> trades = Arrays.asList(
+                new Chapter04.Trade("userY", "itemA", "userX", 100),
+                new Chapter04.Trade("userY", "itemB", "userX", 250),  // 余额不足
+                new Chapter04.Trade("userY", "itemC", "userX", 100),  // 价钱不符
+                new Chapter04.Trade("userX", "itemD", "userZ", 50),  // 使用本批次的收入
+                new Chapter04.Trade("userY", "itemA", "userX", 100));  // 已售出
+        boolean[] settled = APP.settle(CONN, trades);
+        System.out.println("Settled: " + Arrays.toString(settled) + ", funds: " + CONN.hget("users:userY", "funds")
+                + ", " + CONN.hget("users:userX", "funds") + ", " + CONN.hget("users:userZ", "funds"));
+        assert Arrays.equals(settled, new boolean[]{true, false, false, true, false});
+        assert "200".equals(CONN.hget("users:userY", "funds"));
+        assert "60".equals(CONN.hget("users:userX", "funds"));
+        assert "50".equals(CONN.hget("users:userZ", "funds"));
+        assert CONN.sismember("inventory:userY", "itemA");
+        assert CONN.sismember("inventory:userX", "itemD");
+        assert CONN.zcard("market:") == 2;
+
+        Chapter04.SettlementThread thread = new Chapter04.SettlementThread(APP, new Jedis(HOST), 50, 100);
+        thread.start();
+        CompletableFuture<Boolean> result = thread.purchase(new Chapter04.Trade("userY", "itemC", "userX", 99));
+        assert result.get(2, TimeUnit.SECONDS);
+        thread.quit();
+        thread.join(2000);
+        assert "101".equals(CONN.hget("users:userY", "funds"));
+    }
+}